@@ -0,0 +1,99 @@
+package bg.sirma.keycloak.external.benchmark;
+
+import bg.sirma.keycloak.external.cache.PageBoundaryCache;
+import bg.sirma.keycloak.external.config.CountMode;
+import bg.sirma.keycloak.external.config.DatabaseConfig;
+import bg.sirma.keycloak.external.config.EnabledColumnType;
+import bg.sirma.keycloak.external.config.PagingMode;
+import bg.sirma.keycloak.external.config.SearchMode;
+import bg.sirma.keycloak.external.dao.UserDAO;
+import bg.sirma.keycloak.external.metrics.ProviderMetrics;
+import org.h2.jdbcx.JdbcDataSource;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory H2 database in PostgreSQL mode, seeded with {@code users} users of which each has
+ * {@code rolesPerUser} roles out of a pool of 50.
+ */
+class BenchmarkDatabase implements AutoCloseable {
+    static final int ROLE_POOL_SIZE = 50;
+    private static final AtomicInteger DATABASE_COUNTER = new AtomicInteger();
+
+    private final JdbcDataSource dataSource;
+    private final Connection keepAlive;
+    private final int users;
+
+    BenchmarkDatabase(int users, int rolesPerUser, String credential) throws SQLException {
+        this.users = users;
+        this.dataSource = new JdbcDataSource();
+        this.dataSource.setURL("jdbc:h2:mem:benchmark" + DATABASE_COUNTER.incrementAndGet() +
+                ";MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DEFAULT_NULL_ORDERING=HIGH");
+        this.keepAlive = dataSource.getConnection();
+
+        try (Statement statement = keepAlive.createStatement()) {
+            statement.execute("create table \"user\" (\"id\" int primary key, \"username\" varchar(64) not null unique," +
+                    " \"email\" varchar(128) unique, \"first_name\" varchar(64), \"last_name\" varchar(64)," +
+                    " \"enabled\" boolean, \"password\" varchar(256))");
+            statement.execute("create table \"user_role\" (\"user_id\" int not null, \"role_name\" varchar(64) not null)");
+            statement.execute("create index \"user_role_user_id_idx\" on \"user_role\" (\"user_id\")");
+        }
+
+        keepAlive.setAutoCommit(false);
+        try (PreparedStatement userStatement = keepAlive.prepareStatement("insert into \"user\" values (?, ?, ?, ?, ?, ?, ?)");
+             PreparedStatement roleStatement = keepAlive.prepareStatement("insert into \"user_role\" values (?, ?)")) {
+            for (int i = 0; i < users; i++) {
+                userStatement.setInt(1, i);
+                userStatement.setString(2, username(i));
+                userStatement.setString(3, email(i));
+                userStatement.setString(4, "First" + i);
+                userStatement.setString(5, "Last" + i);
+                userStatement.setBoolean(6, true);
+                userStatement.setString(7, credential);
+                userStatement.addBatch();
+                for (int r = 0; r < rolesPerUser; r++) {
+                    roleStatement.setInt(1, i);
+                    roleStatement.setString(2, "role-" + ((i + r) % ROLE_POOL_SIZE));
+                    roleStatement.addBatch();
+                }
+                if (i % 1000 == 999) {
+                    userStatement.executeBatch();
+                    roleStatement.executeBatch();
+                }
+            }
+            userStatement.executeBatch();
+            roleStatement.executeBatch();
+        }
+        keepAlive.commit();
+        keepAlive.setAutoCommit(true);
+    }
+
+    static String username(int i) {
+        return String.format("user%08d", i);
+    }
+
+    static String email(int i) {
+        return username(i) + "@example.com";
+    }
+
+    int getUsers() {
+        return users;
+    }
+
+    UserDAO createUserDAO(boolean withRoles, PagingMode pagingMode, SearchMode searchMode) {
+        DatabaseConfig databaseConfig = new DatabaseConfig("user", "username", "email", "first_name", "last_name",
+                "enabled", EnabledColumnType.BOOLEAN, "password",
+                withRoles ? "user_role" : null, withRoles ? "role_name" : null, withRoles ? "user_id" : null, withRoles ? "id" : null,
+                pagingMode, 500, searchMode, CountMode.EXACT, null);
+        return new UserDAO(dataSource, databaseConfig, new PageBoundaryCache(PageBoundaryCache.DEFAULT_MAX_SIZE, PageBoundaryCache.DEFAULT_TTL_SECONDS), new ProviderMetrics("benchmark", 0));
+    }
+
+    @Override
+    public void close() throws SQLException {
+        keepAlive.close();
+    }
+}
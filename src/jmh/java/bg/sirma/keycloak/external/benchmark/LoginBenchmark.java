@@ -0,0 +1,89 @@
+package bg.sirma.keycloak.external.benchmark;
+
+import bg.sirma.keycloak.external.ExternalDatabaseStorageProvider;
+import bg.sirma.keycloak.external.cache.RoleCache;
+import bg.sirma.keycloak.external.cache.UserCache;
+import bg.sirma.keycloak.external.config.PagingMode;
+import bg.sirma.keycloak.external.config.PasswordHashingAlgorithm;
+import bg.sirma.keycloak.external.config.SearchMode;
+import bg.sirma.keycloak.external.credential.CredentialVerifier;
+import bg.sirma.keycloak.external.credential.PasswordVerifiers;
+import bg.sirma.keycloak.external.metrics.ProviderMetrics;
+import com.atlassian.security.password.DefaultPasswordEncoder;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.UserCredentialModel;
+import org.keycloak.models.UserModel;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Concurrent login throughput through {@link ExternalDatabaseStorageProvider#isValid}: user lookup through
+ * the shared cache, credential load and confirmation, and PKCS5S2 verification on the bounded verifier pool.
+ * The login path does not use the Keycloak session or realm, so both are left out.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(16)
+@Fork(1)
+public class LoginBenchmark {
+
+    private static final String PASSWORD = "password";
+
+    @Param({"10000"})
+    private int users;
+
+    @Param({"0", "10000"})
+    private int cacheSize;
+
+    @Param({"0", "60"})
+    private int memoTtl;
+
+    private BenchmarkDatabase database;
+    private CredentialVerifier credentialVerifier;
+    private ExternalDatabaseStorageProvider provider;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        database = new BenchmarkDatabase(users, 0, DefaultPasswordEncoder.getDefaultInstance().encodePassword(PASSWORD));
+        credentialVerifier = new CredentialVerifier(PasswordVerifiers.forAlgorithm(PasswordHashingAlgorithm.PKCS5S2), "benchmark",
+                Runtime.getRuntime().availableProcessors(), 1000, 10000, memoTtl);
+
+        ComponentModel model = new ComponentModel();
+        model.setId("benchmark");
+        model.setName("benchmark");
+        provider = new ExternalDatabaseStorageProvider(credentialVerifier, null, model,
+                database.createUserDAO(false, PagingMode.OFFSET, SearchMode.CONTAINS),
+                new UserCache(cacheSize, 300, 30), new RoleCache(), new ProviderMetrics("benchmark", 0));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        credentialVerifier.shutdown();
+        database.close();
+    }
+
+    @Benchmark
+    public boolean login() {
+        return provider.isValid(null, hotUser(), UserCredentialModel.password(PASSWORD));
+    }
+
+    /**
+     * Repeated wrong passwords against existing accounts, as in a brute-force attempt.
+     */
+    @Benchmark
+    public boolean wrongPassword() {
+        return provider.isValid(null, hotUser(), UserCredentialModel.password("wrong-" + PASSWORD));
+    }
+
+    private UserModel hotUser() {
+        // A small set of hot users, as in a burst of repeated logins and token refreshes.
+        String username = BenchmarkDatabase.username(ThreadLocalRandom.current().nextInt(Math.min(users, 100)));
+        return provider.getUserByUsername(username, null);
+    }
+}
@@ -0,0 +1,106 @@
+package bg.sirma.keycloak.external.benchmark;
+
+import bg.sirma.keycloak.external.SimpleUserModel;
+import bg.sirma.keycloak.external.UserColumn;
+import bg.sirma.keycloak.external.config.PagingMode;
+import bg.sirma.keycloak.external.config.SearchMode;
+import bg.sirma.keycloak.external.dao.UserDAO;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserDAOBenchmark {
+
+    private static final int PAGE_SIZE = 20;
+
+    @Param({"10000"})
+    private int users;
+
+    @Param({"0", "10"})
+    private int rolesPerUser;
+
+    @Param({"OFFSET", "KEYSET"})
+    private PagingMode pagingMode;
+
+    @Param({"CONTAINS", "PREFIX"})
+    private SearchMode searchMode;
+
+    private BenchmarkDatabase database;
+    private UserDAO userDAO;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        database = new BenchmarkDatabase(users, rolesPerUser, "hash");
+        userDAO = database.createUserDAO(rolesPerUser > 0, pagingMode, searchMode);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        database.close();
+    }
+
+    @Benchmark
+    public SimpleUserModel getUserByUsername() {
+        return userDAO.getUserByColumn(UserColumn.USERNAME, BenchmarkDatabase.username(randomUser()));
+    }
+
+    @Benchmark
+    public SimpleUserModel getUserByEmail() {
+        return userDAO.getUserByColumn(UserColumn.EMAIL, BenchmarkDatabase.email(randomUser()));
+    }
+
+    @Benchmark
+    public Object getUserWithRoles() {
+        SimpleUserModel user = userDAO.getUserByColumn(UserColumn.USERNAME, BenchmarkDatabase.username(randomUser()));
+        return userDAO.getRoles(user);
+    }
+
+    @Benchmark
+    public List<SimpleUserModel> getFirstPage() {
+        return userDAO.getUsers(0, PAGE_SIZE);
+    }
+
+    /**
+     * Walks to the last page one page at a time, so that keyset paging can reuse each page boundary.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int pageThroughAllUsers() {
+        int fetched = 0;
+        List<SimpleUserModel> page;
+        do {
+            page = userDAO.getUsers(fetched, PAGE_SIZE);
+            fetched += page.size();
+        } while (page.size() == PAGE_SIZE);
+        return fetched;
+    }
+
+    @Benchmark
+    public List<SimpleUserModel> getDeepPage() {
+        return userDAO.getUsers(Math.max(users - PAGE_SIZE, 0), PAGE_SIZE);
+    }
+
+    @Benchmark
+    public List<SimpleUserModel> searchForUser() {
+        return userDAO.searchForUser("user0000" + ThreadLocalRandom.current().nextInt(10), 0, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public int countSearchResults() {
+        return userDAO.getUsersCount("user0000" + ThreadLocalRandom.current().nextInt(10));
+    }
+
+    private int randomUser() {
+        return ThreadLocalRandom.current().nextInt(users);
+    }
+}
@@ -0,0 +1,65 @@
+package bg.sirma.keycloak.external;
+
+import bg.sirma.keycloak.external.cache.PageBoundaryCache;
+import bg.sirma.keycloak.external.cache.UserCache;
+import bg.sirma.keycloak.external.credential.CredentialVerifier;
+import bg.sirma.keycloak.external.dao.UserDAO;
+import bg.sirma.keycloak.external.metrics.ProviderMetrics;
+import com.zaxxer.hikari.HikariDataSource;
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.component.ComponentModel;
+
+/**
+ * The connection pool, caches, verifier, metrics and DAO of one component, together with a snapshot of the configuration
+ * they were built from. Comparing the snapshot lets every cluster node notice a configuration change, not only the
+ * node that handled the update.
+ */
+class ComponentResources {
+    private final MultivaluedHashMap<String, String> config;
+    private final HikariDataSource dataSource;
+    private final UserCache userCache;
+    private final PageBoundaryCache pageBoundaryCache;
+    private final CredentialVerifier credentialVerifier;
+    private final ProviderMetrics metrics;
+    private final UserDAO userDAO;
+
+    ComponentResources(MultivaluedHashMap<String, String> config, HikariDataSource dataSource, UserCache userCache,
+                       PageBoundaryCache pageBoundaryCache, CredentialVerifier credentialVerifier, ProviderMetrics metrics,
+                       UserDAO userDAO) {
+        this.config = new MultivaluedHashMap<>(config);
+        this.dataSource = dataSource;
+        this.userCache = userCache;
+        this.pageBoundaryCache = pageBoundaryCache;
+        this.credentialVerifier = credentialVerifier;
+        this.metrics = metrics;
+        this.userDAO = userDAO;
+    }
+
+    boolean isBuiltFrom(ComponentModel model) {
+        return config.equals(model.getConfig());
+    }
+
+    UserCache getUserCache() {
+        return userCache;
+    }
+
+    CredentialVerifier getCredentialVerifier() {
+        return credentialVerifier;
+    }
+
+    ProviderMetrics getMetrics() {
+        return metrics;
+    }
+
+    UserDAO getUserDAO() {
+        return userDAO;
+    }
+
+    void close() {
+        metrics.unregister();
+        credentialVerifier.shutdown();
+        userCache.invalidateAll();
+        pageBoundaryCache.invalidateAll();
+        dataSource.close();
+    }
+}
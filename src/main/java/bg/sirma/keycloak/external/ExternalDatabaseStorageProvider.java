@@ -1,8 +1,11 @@
 package bg.sirma.keycloak.external;
 
-import bg.sirma.keycloak.external.config.PasswordHashingAlgorithm;
+import bg.sirma.keycloak.external.cache.RoleCache;
+import bg.sirma.keycloak.external.cache.UserCache;
+import bg.sirma.keycloak.external.credential.CredentialVerifier;
 import bg.sirma.keycloak.external.dao.UserDAO;
-import com.atlassian.security.password.DefaultPasswordEncoder;
+import bg.sirma.keycloak.external.metrics.Operation;
+import bg.sirma.keycloak.external.metrics.ProviderMetrics;
 import org.keycloak.common.util.MultivaluedHashMap;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.credential.CredentialInput;
@@ -15,9 +18,10 @@ import org.keycloak.storage.adapter.AbstractUserAdapter;
 import org.keycloak.storage.user.UserLookupProvider;
 import org.keycloak.storage.user.UserQueryProvider;
 
-import java.sql.SQLException;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
@@ -26,22 +30,34 @@ public class ExternalDatabaseStorageProvider implements
         UserStorageProvider, UserLookupProvider, UserQueryProvider, CredentialInputValidator {
 
     private static final String CREDENTIAL_ATTRIBUTE = "credential";
+    private static final long CREDENTIAL_RECHECK_INTERVAL_MILLIS = 30000;
 
     private final Map<String, UserModel> loadedUsers;
-    private final PasswordHashingAlgorithm passwordHashingAlgorithm;
+    private final CredentialVerifier credentialVerifier;
     private final KeycloakSession session;
     private final ComponentModel model;
     private final UserDAO userDAO;
+    private final UserCache userCache;
+    private final RoleCache roleCache;
+    private final ProviderMetrics metrics;
+    private final boolean importEnabled;
 
-    public ExternalDatabaseStorageProvider(PasswordHashingAlgorithm passwordHashingAlgorithm,
+    public ExternalDatabaseStorageProvider(CredentialVerifier credentialVerifier,
                                            KeycloakSession session,
                                            ComponentModel model,
-                                           UserDAO userDAO) {
+                                           UserDAO userDAO,
+                                           UserCache userCache,
+                                           RoleCache roleCache,
+                                           ProviderMetrics metrics) {
         this.loadedUsers = new ConcurrentHashMap<>();
-        this.passwordHashingAlgorithm = passwordHashingAlgorithm;
+        this.credentialVerifier = credentialVerifier;
         this.session = session;
         this.model = model;
         this.userDAO = userDAO;
+        this.userCache = userCache;
+        this.roleCache = roleCache;
+        this.metrics = metrics;
+        this.importEnabled = ExternalDatabaseStorageProviderFactory.isImportEnabled(model);
     }
 
     @Override
@@ -57,7 +73,8 @@ public class ExternalDatabaseStorageProvider implements
         UserModel adapter = loadedUsers.get(username);
 
         if (adapter == null) {
-            SimpleUserModel user = userDAO.getUserByColumn(realm, UserColumn.USERNAME, username);
+            SimpleUserModel user = userCache.get(UserColumn.USERNAME, username,
+                    value -> userDAO.getUserByColumn(UserColumn.USERNAME, value));
 
             if (user != null) {
                 adapter = createAdapter(realm, user);
@@ -70,13 +87,18 @@ public class ExternalDatabaseStorageProvider implements
 
     @Override
     public UserModel getUserByEmail(String email, RealmModel realm) {
-        SimpleUserModel user = userDAO.getUserByColumn(realm, UserColumn.EMAIL, email);
-        if (user != null) {
-            UserModel adapter = createAdapter(realm, user);
+        SimpleUserModel user = userCache.get(UserColumn.EMAIL, email,
+                value -> userDAO.getUserByColumn(UserColumn.EMAIL, value));
+        if (user == null) {
+            return null;
+        }
+
+        UserModel adapter = loadedUsers.get(user.getUsername());
+        if (adapter == null) {
+            adapter = createAdapter(realm, user);
             loadedUsers.put(user.getUsername(), adapter);
-            return adapter;
         }
-        return null;
+        return adapter;
     }
 
     @Override
@@ -95,59 +117,83 @@ public class ExternalDatabaseStorageProvider implements
             return false;
         }
 
-        UserModel adapter = this.getUserByUsername(userModel.getUsername(), realm);
-        String credential = adapter.getFirstAttribute(CREDENTIAL_ATTRIBUTE);
+        SimpleUserModel user = userCache.get(UserColumn.USERNAME, userModel.getUsername(),
+                value -> userDAO.getUserByColumn(UserColumn.USERNAME, value));
+        if (user == null) {
+            return false;
+        }
+        String password = input.getChallengeResponse();
+        String credential = user.getCredential();
+
+        if (credential != null && verify(user, password, credential)) {
+            // A cached hash must not grant access on its own after a password change or a disabled account.
+            Pair<String, Boolean> current = loadCredential(user);
+            return current != null && current.getRight() &&
+                    (credential.equals(current.getLeft()) || verify(user, password, current.getLeft()));
+        }
 
-        if (passwordHashingAlgorithm.name().equals(PasswordHashingAlgorithm.PKCS5S2.name())) {
-            return DefaultPasswordEncoder.getDefaultInstance().isValidPassword(input.getChallengeResponse(), credential);
+        // Wrong passwords are answered from the cached hash until it is old enough to be worth re-reading,
+        // so that repeated attempts against one account do not reach the database.
+        long loadedAt = user.getCredentialLoadedAt();
+        if (loadedAt > 0 && System.currentTimeMillis() - loadedAt < CREDENTIAL_RECHECK_INTERVAL_MILLIS) {
+            return false;
         }
 
-        return false;
+        Pair<String, Boolean> current = loadCredential(user);
+        return current != null && current.getRight() && !Objects.equals(credential, current.getLeft()) &&
+                verify(user, password, current.getLeft());
     }
 
     @Override
     public void close() {
-        try {
-            this.userDAO.getConnection().close();
-        } catch (SQLException e) {
-            e.printStackTrace();
-            throw new RuntimeException(e);
-        }
+        // Connections are borrowed per query from the factory-owned pool, nothing to release here.
     }
 
+    // With import enabled, the imported users are listed from local storage. Answering here as well would list each user twice.
+
     @Override
     public int getUsersCount(RealmModel realm) {
-        return userDAO.getUsersCount();
+        return importEnabled ? 0 : userDAO.getUsersCount();
+    }
+
+    @Override
+    public int getUsersCount(String search, RealmModel realm) {
+        return importEnabled ? 0 : userDAO.getUsersCount(search);
+    }
+
+    @Override
+    public int getUsersCount(Map<String, String> params, RealmModel realm) {
+        return importEnabled ? 0 : userDAO.getUsersCount(params);
     }
 
     @Override
     public List<UserModel> getUsers(RealmModel realm) {
-        return convertUserModel(realm, userDAO.getUsers(realm));
+        return importEnabled ? Collections.emptyList() : convertUserModel(realm, userDAO.getUsers());
     }
 
     @Override
     public List<UserModel> getUsers(RealmModel realm, int firstResult, int maxResults) {
-        return convertUserModel(realm, userDAO.getUsers( realm, firstResult, maxResults));
+        return importEnabled ? Collections.emptyList() : convertUserModel(realm, userDAO.getUsers(firstResult, maxResults));
     }
 
     @Override
     public List<UserModel> searchForUser(String search, RealmModel realm) {
-        return convertUserModel(realm, userDAO.searchForUser(realm, search, null, null));
+        return importEnabled ? Collections.emptyList() : convertUserModel(realm, userDAO.searchForUser(search, null, null));
     }
 
     @Override
     public List<UserModel> searchForUser(String search, RealmModel realm, int firstResult, int maxResults) {
-        return convertUserModel(realm, userDAO.searchForUser(realm, search, firstResult, maxResults));
+        return importEnabled ? Collections.emptyList() : convertUserModel(realm, userDAO.searchForUser(search, firstResult, maxResults));
     }
 
     @Override
     public List<UserModel> searchForUser(Map<String, String> params, RealmModel realm) {
-        return convertUserModel(realm, userDAO.searchForUser(realm, params, null, null));
+        return importEnabled ? Collections.emptyList() : convertUserModel(realm, userDAO.searchForUser(params, null, null));
     }
 
     @Override
     public List<UserModel> searchForUser(Map<String, String> params, RealmModel realm, int firstResult, int maxResults) {
-        return convertUserModel(realm, userDAO.searchForUser(realm, params, firstResult, maxResults));
+        return importEnabled ? Collections.emptyList() : convertUserModel(realm, userDAO.searchForUser(params, firstResult, maxResults));
     }
 
     @Override
@@ -165,12 +211,62 @@ public class ExternalDatabaseStorageProvider implements
         return null;
     }
 
+    private boolean verify(SimpleUserModel user, String password, String credential) {
+        return metrics.time(Operation.VERIFY_CREDENTIAL, () -> credentialVerifier.verify(user.getUsername(), password, credential));
+    }
+
+    private Map<String, RoleModel> resolveRoles(RealmModel realm, Set<String> roleNames) {
+        return metrics.time(Operation.RESOLVE_ROLES, () -> roleCache.resolve(session, realm, roleNames));
+    }
+
+    private String getCredential(SimpleUserModel user) {
+        String credential = user.getCredential();
+        if (credential == null) {
+            Pair<String, Boolean> current = loadCredential(user);
+            credential = current != null ? current.getLeft() : null;
+        }
+        return credential;
+    }
+
+    private Pair<String, Boolean> loadCredential(SimpleUserModel user) {
+        Pair<String, Boolean> current = userDAO.getCredential(user.getUsername());
+        if (current == null || current.getRight() != user.isEnabled()) {
+            // The cached user no longer matches the database, drop it so the next lookup reloads it.
+            userCache.invalidate(user.getUsername());
+            loadedUsers.remove(user.getUsername());
+        }
+        user.setCredential(current != null ? current.getLeft() : null);
+        return current;
+    }
+
+    private Set<String> getRoles(SimpleUserModel user) {
+        Set<String> roles = user.getRoles();
+        if (roles == null) {
+            roles = userDAO.getRoles(user);
+            user.setRoles(roles);
+        }
+        return roles;
+    }
+
     private List<UserModel> convertUserModel(RealmModel realm, List<SimpleUserModel> users) {
-        return users.stream().map(u -> createAdapter(realm, u)).collect(Collectors.toList());
+        Set<String> roleNames = users.stream()
+                .map(SimpleUserModel::getRoles)
+                .filter(Objects::nonNull)
+                .flatMap(Set::stream)
+                .collect(Collectors.toSet());
+        Map<String, RoleModel> roles = resolveRoles(realm, roleNames);
+
+        return users.stream().map(u -> createAdapter(realm, u, roles)).collect(Collectors.toList());
     }
 
     private UserModel createAdapter(RealmModel realm, SimpleUserModel user) {
+        return createAdapter(realm, user, Collections.emptyMap());
+    }
+
+    private UserModel createAdapter(RealmModel realm, SimpleUserModel user, Map<String, RoleModel> resolvedRoles) {
         return new AbstractUserAdapter(session, realm, model) {
+            private Set<RoleModel> roleMappings;
+
             @Override
             public String getUsername() {
                 return user.getUsername();
@@ -205,7 +301,7 @@ public class ExternalDatabaseStorageProvider implements
             public String getFirstAttribute(String name) {
                 switch (name) {
                     case CREDENTIAL_ATTRIBUTE:
-                        return user.getCredential();
+                        return getCredential(user);
                     case UserModel.USERNAME:
                         return getUsername();
                     case UserModel.EMAIL:
@@ -233,7 +329,13 @@ public class ExternalDatabaseStorageProvider implements
 
             @Override
             public Set<RoleModel> getRoleMappings() {
-                return user.getRoleMappings();
+                if (roleMappings == null) {
+                    Set<String> roleNames = getRoles(user);
+                    Map<String, RoleModel> roles = resolvedRoles.keySet().containsAll(roleNames)
+                            ? resolvedRoles : resolveRoles(realm, roleNames);
+                    roleMappings = roleNames.stream().map(roles::get).filter(Objects::nonNull).collect(Collectors.toSet());
+                }
+                return roleMappings;
             }
         };
     }
@@ -1,22 +1,55 @@
 package bg.sirma.keycloak.external;
 
+import bg.sirma.keycloak.external.cache.PageBoundaryCache;
+import bg.sirma.keycloak.external.cache.RoleCache;
+import bg.sirma.keycloak.external.cache.UserCache;
+import bg.sirma.keycloak.external.config.CountMode;
 import bg.sirma.keycloak.external.config.DatabaseConfig;
 import bg.sirma.keycloak.external.config.DatabaseEngine;
 import bg.sirma.keycloak.external.config.EnabledColumnType;
+import bg.sirma.keycloak.external.config.PagingMode;
 import bg.sirma.keycloak.external.config.PasswordHashingAlgorithm;
+import bg.sirma.keycloak.external.config.SearchIndexAction;
+import bg.sirma.keycloak.external.config.SearchMode;
+import bg.sirma.keycloak.external.credential.CredentialVerifier;
+import bg.sirma.keycloak.external.credential.PasswordVerifiers;
+import bg.sirma.keycloak.external.dao.SearchIndexDAO;
 import bg.sirma.keycloak.external.dao.UserDAO;
+import bg.sirma.keycloak.external.metrics.ProviderMetrics;
+import bg.sirma.keycloak.external.sync.UserSynchronizer;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.apache.commons.lang.StringUtils;
+import org.jboss.logging.Logger;
 import org.keycloak.common.util.MultivaluedHashMap;
 import org.keycloak.component.ComponentModel;
+import org.keycloak.component.ComponentValidationException;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleContainerModel;
+import org.keycloak.models.RoleModel;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.provider.ProviderConfigurationBuilder;
 import org.keycloak.storage.UserStorageProviderFactory;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.ImportSynchronization;
+import org.keycloak.storage.user.SynchronizationResult;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-public class ExternalDatabaseStorageProviderFactory implements UserStorageProviderFactory<ExternalDatabaseStorageProvider> {
+public class ExternalDatabaseStorageProviderFactory implements UserStorageProviderFactory<ExternalDatabaseStorageProvider>,
+        ImportSynchronization {
+
+    private static final Logger logger = Logger.getLogger(ExternalDatabaseStorageProviderFactory.class);
 
     public static final String PROVIDER_NAME = "external-database";
     public static final String DB_DATABASE_ENGINE_KEY = "db:database-engine";
@@ -38,53 +71,323 @@ public class ExternalDatabaseStorageProviderFactory implements UserStorageProvid
     private static final String DB_USER_ROLE_COLUMN_KEY = "db:user-role_name";
     private static final String DB_ROLE_USER_ID_FOREIGN_KEY = "db:role-table-user-id-fk";
     private static final String DB_USER_PRIMARY_KEY = "db:user-table-pk";
+    public static final String DB_POOL_MIN_IDLE_KEY = "db:pool-min-idle";
+    public static final String DB_POOL_MAX_SIZE_KEY = "db:pool-max-size";
+    public static final String DB_POOL_ACQUIRE_TIMEOUT_KEY = "db:pool-acquire-timeout";
+    public static final String DB_POOL_VALIDATION_TIMEOUT_KEY = "db:pool-validation-timeout";
+    public static final String DB_PREPARED_STATEMENT_CACHE_SIZE_KEY = "db:prepared-statement-cache-size";
+    public static final String DB_PREPARE_THRESHOLD_KEY = "db:prepare-threshold";
+    public static final String DB_PAGING_MODE_KEY = "db:paging-mode";
+    public static final String DB_PAGE_BOUNDARY_CACHE_SIZE_KEY = "db:page-boundary-cache-size";
+    public static final String DB_PAGE_BOUNDARY_CACHE_TTL_KEY = "db:page-boundary-cache-ttl";
+    public static final String DB_FETCH_SIZE_KEY = "db:fetch-size";
+    public static final String DB_SEARCH_MODE_KEY = "db:search-mode";
+    public static final String DB_SEARCH_INDEXES_KEY = "db:search-indexes";
+    public static final String DB_COUNT_MODE_KEY = "db:count-mode";
+    public static final String CREDENTIAL_VERIFIER_THREADS_KEY = "credential:verifier-threads";
+    public static final String CREDENTIAL_VERIFIER_QUEUE_SIZE_KEY = "credential:verifier-queue-size";
+    public static final String CREDENTIAL_VERIFIER_TIMEOUT_KEY = "credential:verifier-timeout";
+    public static final String CREDENTIAL_MEMO_TTL_KEY = "credential:memo-ttl";
+    public static final String METRICS_SLOW_QUERY_THRESHOLD_KEY = "metrics:slow-query-threshold";
+    public static final String DB_USER_TABLE_UPDATED_AT_COLUMN_KEY = "db:user-table-updated-at";
+    public static final String SYNC_IMPORT_USERS_KEY = "sync:import-users";
+    public static final String SYNC_BATCH_SIZE_KEY = "sync:batch-size";
+    public static final String SYNC_PARALLELISM_KEY = "sync:parallelism";
+    public static final String CACHE_MAX_SIZE_KEY = "cache:max-size";
+    public static final String CACHE_TTL_KEY = "cache:ttl";
+    public static final String CACHE_NEGATIVE_TTL_KEY = "cache:negative-ttl";
+
+    private final Map<String, ComponentResources> componentResources = new ConcurrentHashMap<>();
+    private final RoleCache roleCache = new RoleCache();
+    private final ExecutorService searchIndexBuilder = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, PROVIDER_NAME + "-search-index-builder");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     @Override
     public ExternalDatabaseStorageProvider create(KeycloakSession session, ComponentModel model) {
-        UserDAO userDAO;
-        PasswordHashingAlgorithm passwordHashingAlgorithm;
+        ComponentResources resources;
 
         try {
-            MultivaluedHashMap<String, String> config = model.getConfig();
-
-            DatabaseEngine databaseEngine = DatabaseEngine.fromName(config.getFirst(DB_DATABASE_ENGINE_KEY));
-            String host = config.getFirst(DB_HOST_KEY);
-            String port = config.getFirst(DB_PORT_KEY);
-            String databaseName = config.getFirst(DB_DATABASE_NAME_KEY);
-            String username = config.getFirst(DB_USERNAME_KEY);
-            String password = config.getFirst(DB_PASSWORD_KEY);
-
-            passwordHashingAlgorithm = PasswordHashingAlgorithm.fromName(config.getFirst(DB_PASSWORD_HASHING_ALGORITHM_KEY));
-
-            Class.forName(databaseEngine.getDriver());
-
-            Connection connection = DriverManager.getConnection(
-                    databaseEngine.getProtocol() + "//" + host + ":" + port + "/" + databaseName, username, password);
-
-            String userTable = config.getFirst(DB_USER_TABLE_KEY);
-            String usernameColumn = config.getFirst(DB_USER_TABLE_USERNAME_COLUMN_KEY);
-            String emailColumn = config.getFirst(DB_USER_TABLE_EMAIL_COLUMN_KEY);
-            String passwordColumn = config.getFirst(DB_USER_TABLE_PASSWORD_COLUMN_KEY);
-            String first = config.getFirst(DB_USER_TABLE_FIRST_NAME_COLUMN_KEY);
-            String last = config.getFirst(DB_USER_TABLE_LAST_NAME_COLUMN_KEY);
-            String enabled = config.getFirst(DB_USER_TABLE_ENABLED_COLUMN_KEY);
-            EnabledColumnType enabledColumnType = EnabledColumnType.valueOf(config.getFirst(DB_USER_TABLE_ENABLED_COLUMN_TYPE_KEY));
-
-            String rolesTable = config.getFirst(DB_USER_ROLES_TABLE_KEY);
-            String roleColumn = config.getFirst(DB_USER_ROLE_COLUMN_KEY);
-            String userIdForeignKeyColumn = config.getFirst(DB_ROLE_USER_ID_FOREIGN_KEY);
-            String userIdPrimaryKeyColumn = config.getFirst(DB_USER_PRIMARY_KEY);
-
-            DatabaseConfig databaseConfig = new DatabaseConfig(userTable, usernameColumn, emailColumn, first, last, enabled, enabledColumnType, passwordColumn,
-                    rolesTable, roleColumn, userIdForeignKeyColumn, userIdPrimaryKeyColumn);
-            userDAO = new UserDAO(connection, databaseConfig);
+            resources = getResources(model);
         } catch (Exception e) {
-            e.printStackTrace();
-            System.err.println(e.getClass().getName() + ": " + e.getMessage());
+            logger.error("Could not create external database provider for component " + model.getName(), e);
             throw new RuntimeException(e);
         }
 
-        return new ExternalDatabaseStorageProvider(passwordHashingAlgorithm, session, model, userDAO);
+        return new ExternalDatabaseStorageProvider(resources.getCredentialVerifier(), session, model, resources.getUserDAO(),
+                resources.getUserCache(), roleCache, resources.getMetrics());
+    }
+
+    @Override
+    public SynchronizationResult sync(KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+        if (!isImportEnabled(model)) {
+            logger.warnf("Ignoring synchronization of component %s, importing users is not enabled", model.getName());
+            return SynchronizationResult.ignored();
+        }
+        return createUserSynchronizer(model).synchronize(sessionFactory, realmId, model, null);
+    }
+
+    @Override
+    public SynchronizationResult syncSince(Date lastSync, KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+        if (!isImportEnabled(model) || lastSync == null || StringUtils.isBlank(model.getConfig().getFirst(DB_USER_TABLE_UPDATED_AT_COLUMN_KEY))) {
+            return sync(sessionFactory, realmId, model);
+        }
+        return createUserSynchronizer(model).synchronize(sessionFactory, realmId, model, lastSync);
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        factory.register(event -> {
+            if (event instanceof RoleContainerModel.RoleRemovedEvent) {
+                RoleModel role = ((RoleContainerModel.RoleRemovedEvent) event).getRole();
+                if (!role.isClientRole()) {
+                    roleCache.invalidate(role.getContainerId(), role.getName());
+                }
+            } else if (event instanceof RealmModel.RealmRemovedEvent) {
+                roleCache.invalidateRealm(((RealmModel.RealmRemovedEvent) event).getRealm().getId());
+            }
+        });
+    }
+
+    @Override
+    public void onUpdate(KeycloakSession session, RealmModel realm, ComponentModel oldModel, ComponentModel newModel) {
+        closeResources(oldModel.getId());
+    }
+
+    @Override
+    public void preRemove(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        closeResources(model.getId());
+    }
+
+    @Override
+    public void close() {
+        componentResources.keySet().forEach(this::closeResources);
+        roleCache.invalidateAll();
+        searchIndexBuilder.shutdownNow();
+    }
+
+    @Override
+    public void validateConfiguration(KeycloakSession session, RealmModel realm, ComponentModel model) throws ComponentValidationException {
+        MultivaluedHashMap<String, String> config = model.getConfig();
+        String searchIndexActionName = config.getFirst(DB_SEARCH_INDEXES_KEY);
+        SearchIndexAction searchIndexAction = StringUtils.isNotBlank(searchIndexActionName) ? SearchIndexAction.valueOf(searchIndexActionName) : SearchIndexAction.NONE;
+        if (searchIndexAction == SearchIndexAction.NONE) {
+            return;
+        }
+
+        DatabaseConfig databaseConfig = createDatabaseConfig(model);
+        List<String> missingIndexes;
+
+        try (Connection connection = openConnection(config)) {
+            missingIndexes = new SearchIndexDAO(connection, databaseConfig).getMissingIndexes();
+        } catch (Exception e) {
+            logger.warn("Could not check the search indexes for component " + model.getName(), e);
+            throw new ComponentValidationException("Could not check the search indexes: " + e.getMessage());
+        }
+
+        if (missingIndexes.isEmpty()) {
+            return;
+        }
+        if (searchIndexAction == SearchIndexAction.CREATE) {
+            // A concurrent index build can take a long time on a large table, keep it out of the save request.
+            logger.infof("Creating search indexes %s for component %s in the background", missingIndexes, model.getName());
+            searchIndexBuilder.submit(() -> createSearchIndexes(model, databaseConfig));
+            return;
+        }
+        throw new ComponentValidationException("Missing search indexes on table " + databaseConfig.getUserTable() + ": "
+                + String.join(", ", missingIndexes));
+    }
+
+    private void createSearchIndexes(ComponentModel model, DatabaseConfig databaseConfig) {
+        try (Connection connection = openConnection(model.getConfig())) {
+            SearchIndexDAO searchIndexDAO = new SearchIndexDAO(connection, databaseConfig);
+            searchIndexDAO.createIndexes();
+            List<String> missingIndexes = searchIndexDAO.getMissingIndexes();
+            if (missingIndexes.isEmpty()) {
+                logger.infof("Created search indexes for component %s", model.getName());
+            } else {
+                logger.warnf("Search indexes %s for component %s are still missing or invalid", missingIndexes, model.getName());
+            }
+        } catch (Exception e) {
+            logger.error("Could not create the search indexes for component " + model.getName(), e);
+        }
+    }
+
+    private static Connection openConnection(MultivaluedHashMap<String, String> config) throws ClassNotFoundException, SQLException {
+        DatabaseEngine databaseEngine = DatabaseEngine.fromName(config.getFirst(DB_DATABASE_ENGINE_KEY));
+        Class.forName(databaseEngine.getDriver());
+        return DriverManager.getConnection(getJdbcUrl(config), config.getFirst(DB_USERNAME_KEY), config.getFirst(DB_PASSWORD_KEY));
+    }
+
+    private UserSynchronizer createUserSynchronizer(UserStorageProviderModel model) {
+        MultivaluedHashMap<String, String> config = model.getConfig();
+
+        return new UserSynchronizer(getResources(model).getUserDAO(), roleCache,
+                getInt(config, SYNC_BATCH_SIZE_KEY, 500),
+                getInt(config, SYNC_PARALLELISM_KEY, 2));
+    }
+
+    /**
+     * Returns the resources of the component, rebuilding them when they were built from a different configuration.
+     * This also catches updates handled by another cluster node, where {@link #onUpdate} is not called.
+     */
+    private ComponentResources getResources(ComponentModel model) {
+        ComponentResources resources = componentResources.get(model.getId());
+        if (resources != null && resources.isBuiltFrom(model)) {
+            return resources;
+        }
+
+        synchronized (componentResources) {
+            resources = componentResources.get(model.getId());
+            if (resources != null && resources.isBuiltFrom(model)) {
+                return resources;
+            }
+            if (resources != null) {
+                logger.infof("Configuration of component %s changed, rebuilding its connection pool and caches", model.getName());
+                closeResources(model.getId());
+            }
+            resources = createResources(model);
+            componentResources.put(model.getId(), resources);
+            return resources;
+        }
+    }
+
+    private ComponentResources createResources(ComponentModel model) {
+        HikariDataSource dataSource = createDataSource(model);
+        try {
+            UserCache userCache = createUserCache(model);
+            CredentialVerifier credentialVerifier = createCredentialVerifier(model);
+            PageBoundaryCache pageBoundaryCache = createPageBoundaryCache(model);
+            ProviderMetrics metrics = createMetrics(model, dataSource, userCache, credentialVerifier);
+            UserDAO userDAO = new UserDAO(dataSource, createDatabaseConfig(model), pageBoundaryCache, metrics);
+            return new ComponentResources(model.getConfig(), dataSource, userCache, pageBoundaryCache,
+                    credentialVerifier, metrics, userDAO);
+        } catch (RuntimeException e) {
+            dataSource.close();
+            throw e;
+        }
+    }
+
+    private void closeResources(String componentId) {
+        ComponentResources resources = componentResources.remove(componentId);
+        if (resources != null) {
+            resources.close();
+        }
+    }
+
+    private DatabaseConfig createDatabaseConfig(ComponentModel model) {
+        MultivaluedHashMap<String, String> config = model.getConfig();
+
+        String userTable = config.getFirst(DB_USER_TABLE_KEY);
+        String usernameColumn = config.getFirst(DB_USER_TABLE_USERNAME_COLUMN_KEY);
+        String emailColumn = config.getFirst(DB_USER_TABLE_EMAIL_COLUMN_KEY);
+        String passwordColumn = config.getFirst(DB_USER_TABLE_PASSWORD_COLUMN_KEY);
+        String first = config.getFirst(DB_USER_TABLE_FIRST_NAME_COLUMN_KEY);
+        String last = config.getFirst(DB_USER_TABLE_LAST_NAME_COLUMN_KEY);
+        String enabled = config.getFirst(DB_USER_TABLE_ENABLED_COLUMN_KEY);
+        EnabledColumnType enabledColumnType = EnabledColumnType.valueOf(config.getFirst(DB_USER_TABLE_ENABLED_COLUMN_TYPE_KEY));
+
+        String rolesTable = config.getFirst(DB_USER_ROLES_TABLE_KEY);
+        String roleColumn = config.getFirst(DB_USER_ROLE_COLUMN_KEY);
+        String userIdForeignKeyColumn = config.getFirst(DB_ROLE_USER_ID_FOREIGN_KEY);
+        String userIdPrimaryKeyColumn = config.getFirst(DB_USER_PRIMARY_KEY);
+        String updatedAtColumn = config.getFirst(DB_USER_TABLE_UPDATED_AT_COLUMN_KEY);
+
+        String pagingModeName = config.getFirst(DB_PAGING_MODE_KEY);
+        PagingMode pagingMode = StringUtils.isNotBlank(pagingModeName) ? PagingMode.valueOf(pagingModeName) : PagingMode.OFFSET;
+        int fetchSize = getInt(config, DB_FETCH_SIZE_KEY, 500);
+        String searchModeName = config.getFirst(DB_SEARCH_MODE_KEY);
+        SearchMode searchMode = StringUtils.isNotBlank(searchModeName) ? SearchMode.valueOf(searchModeName) : SearchMode.CONTAINS;
+        String countModeName = config.getFirst(DB_COUNT_MODE_KEY);
+        CountMode countMode = StringUtils.isNotBlank(countModeName) ? CountMode.valueOf(countModeName) : CountMode.EXACT;
+
+        return new DatabaseConfig(userTable, usernameColumn, emailColumn, first, last, enabled, enabledColumnType, passwordColumn,
+                rolesTable, roleColumn, userIdForeignKeyColumn, userIdPrimaryKeyColumn, pagingMode, fetchSize, searchMode, countMode,
+                updatedAtColumn);
+    }
+
+    private static String getJdbcUrl(MultivaluedHashMap<String, String> config) {
+        DatabaseEngine databaseEngine = DatabaseEngine.fromName(config.getFirst(DB_DATABASE_ENGINE_KEY));
+        String host = config.getFirst(DB_HOST_KEY);
+        String port = config.getFirst(DB_PORT_KEY);
+        String databaseName = config.getFirst(DB_DATABASE_NAME_KEY);
+
+        return databaseEngine.getProtocol() + "//" + host + ":" + port + "/" + databaseName;
+    }
+
+    private HikariDataSource createDataSource(ComponentModel model) {
+        MultivaluedHashMap<String, String> config = model.getConfig();
+
+        DatabaseEngine databaseEngine = DatabaseEngine.fromName(config.getFirst(DB_DATABASE_ENGINE_KEY));
+
+        HikariConfig hikariConfig = new HikariConfig();
+        hikariConfig.setPoolName(PROVIDER_NAME + "-" + model.getId());
+        hikariConfig.setDriverClassName(databaseEngine.getDriver());
+        hikariConfig.setJdbcUrl(getJdbcUrl(config));
+        hikariConfig.setUsername(config.getFirst(DB_USERNAME_KEY));
+        hikariConfig.setPassword(config.getFirst(DB_PASSWORD_KEY));
+        hikariConfig.setMinimumIdle(getInt(config, DB_POOL_MIN_IDLE_KEY, 2));
+        hikariConfig.setMaximumPoolSize(getInt(config, DB_POOL_MAX_SIZE_KEY, 10));
+        hikariConfig.setConnectionTimeout(getInt(config, DB_POOL_ACQUIRE_TIMEOUT_KEY, 5000));
+        hikariConfig.setValidationTimeout(getInt(config, DB_POOL_VALIDATION_TIMEOUT_KEY, 3000));
+        hikariConfig.addDataSourceProperty("preparedStatementCacheQueries", getInt(config, DB_PREPARED_STATEMENT_CACHE_SIZE_KEY, 256));
+        hikariConfig.addDataSourceProperty("prepareThreshold", getInt(config, DB_PREPARE_THRESHOLD_KEY, 1));
+
+        return new HikariDataSource(hikariConfig);
+    }
+
+    private UserCache createUserCache(ComponentModel model) {
+        MultivaluedHashMap<String, String> config = model.getConfig();
+
+        return new UserCache(getInt(config, CACHE_MAX_SIZE_KEY, 10000),
+                getInt(config, CACHE_TTL_KEY, 300),
+                getInt(config, CACHE_NEGATIVE_TTL_KEY, 30));
+    }
+
+    private PageBoundaryCache createPageBoundaryCache(ComponentModel model) {
+        MultivaluedHashMap<String, String> config = model.getConfig();
+
+        return new PageBoundaryCache(getInt(config, DB_PAGE_BOUNDARY_CACHE_SIZE_KEY, PageBoundaryCache.DEFAULT_MAX_SIZE),
+                getInt(config, DB_PAGE_BOUNDARY_CACHE_TTL_KEY, PageBoundaryCache.DEFAULT_TTL_SECONDS));
+    }
+
+    private CredentialVerifier createCredentialVerifier(ComponentModel model) {
+        MultivaluedHashMap<String, String> config = model.getConfig();
+        PasswordHashingAlgorithm passwordHashingAlgorithm = PasswordHashingAlgorithm.fromName(config.getFirst(DB_PASSWORD_HASHING_ALGORITHM_KEY));
+
+        return new CredentialVerifier(PasswordVerifiers.forAlgorithm(passwordHashingAlgorithm), PROVIDER_NAME + "-" + model.getId(),
+                getInt(config, CREDENTIAL_VERIFIER_THREADS_KEY, Runtime.getRuntime().availableProcessors()),
+                getInt(config, CREDENTIAL_VERIFIER_QUEUE_SIZE_KEY, 100),
+                getInt(config, CREDENTIAL_VERIFIER_TIMEOUT_KEY, 10000),
+                getInt(config, CREDENTIAL_MEMO_TTL_KEY, 0));
+    }
+
+    private ProviderMetrics createMetrics(ComponentModel model, HikariDataSource dataSource, UserCache userCache,
+                                          CredentialVerifier credentialVerifier) {
+        ProviderMetrics metrics = new ProviderMetrics(model.getId(), getInt(model.getConfig(), METRICS_SLOW_QUERY_THRESHOLD_KEY, 500));
+        metrics.registerGauge("userCacheHits", userCache::getHitCount);
+        metrics.registerGauge("userCacheMisses", userCache::getMissCount);
+        metrics.registerGauge("verificationsRejected", credentialVerifier::getRejectedCount);
+        metrics.registerGauge("poolActiveConnections", () ->
+                dataSource.getHikariPoolMXBean() != null ? dataSource.getHikariPoolMXBean().getActiveConnections() : 0);
+        metrics.registerGauge("poolThreadsAwaitingConnection", () ->
+                dataSource.getHikariPoolMXBean() != null ? dataSource.getHikariPoolMXBean().getThreadsAwaitingConnection() : 0);
+        metrics.register();
+        return metrics;
+    }
+
+    /**
+     * @return whether users are imported into local storage, in which case local storage answers user queries
+     */
+    public static boolean isImportEnabled(ComponentModel model) {
+        return Boolean.parseBoolean(model.getConfig().getFirst(SYNC_IMPORT_USERS_KEY));
+    }
+
+    private static int getInt(MultivaluedHashMap<String, String> config, String key, int defaultValue) {
+        String value = config.getFirst(key);
+        return StringUtils.isNotBlank(value) ? Integer.parseInt(value.trim()) : defaultValue;
     }
 
     @Override
@@ -194,10 +497,41 @@ public class ExternalDatabaseStorageProviderFactory implements UserStorageProvid
                 .property().name(DB_PASSWORD_HASHING_ALGORITHM_KEY)
                 .type(ProviderConfigProperty.LIST_TYPE)
                 .label("Password Hashing Algorithm")
-                .options(PasswordHashingAlgorithm.PKCS5S2.getName())
+                .options(PasswordHashingAlgorithm.PKCS5S2.getName(), PasswordHashingAlgorithm.BCRYPT.getName(),
+                        PasswordHashingAlgorithm.PBKDF2_SHA256.getName(), PasswordHashingAlgorithm.ARGON2.getName())
                 .defaultValue(PasswordHashingAlgorithm.PKCS5S2.getName())
                 .add()
 
+                // Credential Verifier Threads
+                .property().name(CREDENTIAL_VERIFIER_THREADS_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Password Verification Threads")
+                .helpText("Number of threads verifying password hashes. Defaults to the number of available processors.")
+                .add()
+
+                // Credential Verifier Queue Size
+                .property().name(CREDENTIAL_VERIFIER_QUEUE_SIZE_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Password Verification Queue Size")
+                .helpText("Number of verifications allowed to wait for a thread. Logins beyond that are rejected immediately.")
+                .defaultValue("100")
+                .add()
+
+                // Credential Verifier Timeout
+                .property().name(CREDENTIAL_VERIFIER_TIMEOUT_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Password Verification Timeout (ms)")
+                .defaultValue("10000")
+                .add()
+
+                // Credential Memo TTL
+                .property().name(CREDENTIAL_MEMO_TTL_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Verified Password Memo TTL (s)")
+                .helpText("Time for which a successful verification is remembered so that repeated logins skip the hashing. Set to 0 to disable.")
+                .defaultValue("0")
+                .add()
+
                 // User Roles Table Name
                 .property().name(DB_USER_ROLES_TABLE_KEY)
                 .type(ProviderConfigProperty.STRING_TYPE)
@@ -222,6 +556,177 @@ public class ExternalDatabaseStorageProviderFactory implements UserStorageProvid
                 .type(ProviderConfigProperty.STRING_TYPE)
                 .add()
 
+                // Updated At Column
+                .property().name(DB_USER_TABLE_UPDATED_AT_COLUMN_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Updated At Column Name")
+                .helpText("Timestamp column holding the last change of a user. Enables incremental synchronization of changed users only.")
+                .add()
+
+                // Import Users
+                .property().name(SYNC_IMPORT_USERS_KEY)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .label("Import Users")
+                .helpText("Enables synchronization of users into Keycloak's local storage. Listings, searches and counts are then "
+                        + "answered from local storage only, and users that are not imported yet can still log in.")
+                .defaultValue("false")
+                .add()
+
+                // Sync Batch Size
+                .property().name(SYNC_BATCH_SIZE_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Synchronization Batch Size")
+                .helpText("Number of users imported per transaction.")
+                .defaultValue("500")
+                .add()
+
+                // Sync Parallelism
+                .property().name(SYNC_PARALLELISM_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Synchronization Parallelism")
+                .helpText("Number of batches imported concurrently.")
+                .defaultValue("2")
+                .add()
+
+                // Pool Minimum Idle Connections
+                .property().name(DB_POOL_MIN_IDLE_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Pool Minimum Idle Connections")
+                .defaultValue("2")
+                .add()
+
+                // Pool Maximum Size
+                .property().name(DB_POOL_MAX_SIZE_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Pool Maximum Size")
+                .defaultValue("10")
+                .add()
+
+                // Pool Acquire Timeout
+                .property().name(DB_POOL_ACQUIRE_TIMEOUT_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Pool Acquire Timeout (ms)")
+                .helpText("Maximum time to wait for a connection from the pool before failing the request.")
+                .defaultValue("5000")
+                .add()
+
+                // Pool Validation Timeout
+                .property().name(DB_POOL_VALIDATION_TIMEOUT_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Pool Validation Timeout (ms)")
+                .helpText("Maximum time to wait for a pooled connection to be validated before it is handed out.")
+                .defaultValue("3000")
+                .add()
+
+                // Prepared Statement Cache Size
+                .property().name(DB_PREPARED_STATEMENT_CACHE_SIZE_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Prepared Statement Cache Size")
+                .helpText("Number of server-side prepared statements cached per connection.")
+                .defaultValue("256")
+                .add()
+
+                // Prepare Threshold
+                .property().name(DB_PREPARE_THRESHOLD_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Prepare Threshold")
+                .helpText("Number of executions after which a statement is switched to a server-side prepared statement.")
+                .defaultValue("1")
+                .add()
+
+                // Paging Mode
+                .property().name(DB_PAGING_MODE_KEY)
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .label("Paging Mode")
+                .helpText("OFFSET pages with LIMIT/OFFSET. KEYSET continues from the last username of the previous page when it is known, which keeps deep pages cheap.")
+                .options(PagingMode.OFFSET.name(), PagingMode.KEYSET.name())
+                .defaultValue(PagingMode.OFFSET.name())
+                .add()
+
+                // Page Boundary Cache Size
+                .property().name(DB_PAGE_BOUNDARY_CACHE_SIZE_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Page Boundary Cache Size")
+                .helpText("Maximum number of remembered page boundaries used by KEYSET paging.")
+                .defaultValue(String.valueOf(PageBoundaryCache.DEFAULT_MAX_SIZE))
+                .add()
+
+                // Page Boundary Cache TTL
+                .property().name(DB_PAGE_BOUNDARY_CACHE_TTL_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Page Boundary Cache TTL (s)")
+                .helpText("Time for which a page boundary is reused before paging falls back to OFFSET for that page.")
+                .defaultValue(String.valueOf(PageBoundaryCache.DEFAULT_TTL_SECONDS))
+                .add()
+
+                // Fetch Size
+                .property().name(DB_FETCH_SIZE_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Fetch Size")
+                .helpText("Number of rows fetched per round trip when listing all users.")
+                .defaultValue("500")
+                .add()
+
+                // Search Mode
+                .property().name(DB_SEARCH_MODE_KEY)
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .label("Search Mode")
+                .helpText("CONTAINS matches anywhere with LIKE and always scans the table. PREFIX matches from the start and can use B-tree indexes. "
+                        + "TRIGRAM matches anywhere, case-insensitively, and can use pg_trgm GIN indexes. FULL_TEXT matches word prefixes through a tsvector GIN index.")
+                .options(SearchMode.CONTAINS.name(), SearchMode.PREFIX.name(), SearchMode.TRIGRAM.name(), SearchMode.FULL_TEXT.name())
+                .defaultValue(SearchMode.CONTAINS.name())
+                .add()
+
+                // Search Indexes
+                .property().name(DB_SEARCH_INDEXES_KEY)
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .label("Search Indexes")
+                .helpText("On save, CHECK verifies that valid indexes for the selected search mode exist, CREATE builds the missing or invalid ones in the background.")
+                .options(SearchIndexAction.NONE.name(), SearchIndexAction.CHECK.name(), SearchIndexAction.CREATE.name())
+                .defaultValue(SearchIndexAction.NONE.name())
+                .add()
+
+                // Count Mode
+                .property().name(DB_COUNT_MODE_KEY)
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .label("Users Count Mode")
+                .helpText("ESTIMATE reports the planner's row estimate for the user table instead of running count(*).")
+                .options(CountMode.EXACT.name(), CountMode.ESTIMATE.name())
+                .defaultValue(CountMode.EXACT.name())
+                .add()
+
+                // Slow Query Threshold
+                .property().name(METRICS_SLOW_QUERY_THRESHOLD_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Slow Query Threshold (ms)")
+                .helpText("Queries taking longer than this are logged with their SQL and bind parameter count. Set to 0 to disable.")
+                .defaultValue("500")
+                .add()
+
+                // User Cache Maximum Size
+                .property().name(CACHE_MAX_SIZE_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("User Cache Maximum Size")
+                .helpText("Maximum number of users kept in the shared user cache. Set to 0 to disable caching.")
+                .defaultValue("10000")
+                .add()
+
+                // User Cache TTL
+                .property().name(CACHE_TTL_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("User Cache TTL (s)")
+                .helpText("Time after which a cached user is reloaded from the database.")
+                .defaultValue("300")
+                .add()
+
+                // User Cache Negative TTL
+                .property().name(CACHE_NEGATIVE_TTL_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("User Not Found Cache TTL (s)")
+                .helpText("Time for which a lookup of an unknown username or email is answered without querying the database.")
+                .defaultValue("30")
+                .add()
+
                 .build();
     }
 
@@ -1,27 +1,30 @@
 package bg.sirma.keycloak.external;
 
-import org.keycloak.models.RoleModel;
-
 import java.util.Objects;
 import java.util.Set;
 
 public class SimpleUserModel {
+    private final Object id;
     private final String username;
     private final String email;
     private final String firstName;
     private final String lastName;
     private final boolean enabled;
-    private final String credential;
-    private final Set<RoleModel> roleMappings;
+    private volatile String credential;
+    private volatile long credentialLoadedAt;
+    private volatile Set<String> roles;
 
-    public SimpleUserModel(String username, String email, String firstName, String lastName, boolean enabled, String credential, Set<RoleModel> roleMappings) {
+    public SimpleUserModel(Object id, String username, String email, String firstName, String lastName, boolean enabled) {
+        this.id = id;
         this.username = username;
         this.email = email;
         this.firstName = firstName;
         this.lastName = lastName;
         this.enabled = enabled;
-        this.credential = credential;
-        this.roleMappings = roleMappings;
+    }
+
+    public Object getId() {
+        return id;
     }
 
     public String getUsername() {
@@ -44,12 +47,34 @@ public class SimpleUserModel {
         return enabled;
     }
 
+    /**
+     * @return the stored password hash, or {@code null} if it has not been loaded yet
+     */
     public String getCredential() {
         return credential;
     }
 
-    public Set<RoleModel> getRoleMappings() {
-        return roleMappings;
+    public void setCredential(String credential) {
+        this.credential = credential;
+        this.credentialLoadedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * @return when the credential was last set, in milliseconds since the epoch
+     */
+    public long getCredentialLoadedAt() {
+        return credentialLoadedAt;
+    }
+
+    /**
+     * @return the names of the user's roles, or {@code null} if they have not been loaded yet
+     */
+    public Set<String> getRoles() {
+        return roles;
+    }
+
+    public void setRoles(Set<String> roles) {
+        this.roles = roles;
     }
 
     @Override
@@ -58,17 +83,16 @@ public class SimpleUserModel {
         if (o == null || getClass() != o.getClass()) return false;
         SimpleUserModel that = (SimpleUserModel) o;
         return enabled == that.enabled &&
+                Objects.equals(id, that.id) &&
                 Objects.equals(username, that.username) &&
                 Objects.equals(email, that.email) &&
                 Objects.equals(firstName, that.firstName) &&
-                Objects.equals(lastName, that.lastName) &&
-                Objects.equals(credential, that.credential) &&
-                Objects.equals(roleMappings, that.roleMappings);
+                Objects.equals(lastName, that.lastName);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(username, email, firstName, lastName, enabled, credential, roleMappings);
+        return Objects.hash(id, username, email, firstName, lastName, enabled);
     }
 
 }
@@ -0,0 +1,41 @@
+package bg.sirma.keycloak.external.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the last username returned before a given offset of a query, so that the next page
+ * can be fetched with a keyset condition ({@code username > ?}) instead of a growing OFFSET.
+ */
+public class PageBoundaryCache {
+    public static final int DEFAULT_MAX_SIZE = 10000;
+    public static final int DEFAULT_TTL_SECONDS = 600;
+
+    private final Cache<String, String> boundaries;
+
+    public PageBoundaryCache(long maxSize, long ttlSeconds) {
+        this.boundaries = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    public String get(String condition, List<Object> params, int offset) {
+        return boundaries.getIfPresent(key(condition, params, offset));
+    }
+
+    public void put(String condition, List<Object> params, int offset, String lastUsername) {
+        boundaries.put(key(condition, params, offset), lastUsername);
+    }
+
+    public void invalidateAll() {
+        boundaries.invalidateAll();
+    }
+
+    private static String key(String condition, List<Object> params, int offset) {
+        return condition + '\u0000' + params + '\u0000' + offset;
+    }
+}
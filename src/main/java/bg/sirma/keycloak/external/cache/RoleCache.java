@@ -0,0 +1,103 @@
+package bg.sirma.keycloak.external.cache;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ModelDuplicateException;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Realm-scoped mapping from external role names to Keycloak realm role ids, shared by all sessions.
+ * Names that are not known yet are resolved together against a single snapshot of the realm roles.
+ * The ones still missing are added in a separate transaction that is committed before they are used,
+ * one at a time per realm, so concurrent logins never add the same role in their own transactions.
+ */
+public class RoleCache {
+
+    private final Map<String, Map<String, String>> roleIdsByRealm = new ConcurrentHashMap<>();
+    private final Map<String, Object> provisionLocks = new ConcurrentHashMap<>();
+
+    public Map<String, RoleModel> resolve(KeycloakSession session, RealmModel realm, Collection<String> roleNames) {
+        Map<String, String> roleIds = roleIdsByRealm.computeIfAbsent(realm.getId(), id -> new ConcurrentHashMap<>());
+        Map<String, RoleModel> roles = new HashMap<>();
+        Set<String> missing = new HashSet<>();
+
+        for (String roleName : new HashSet<>(roleNames)) {
+            if (!lookup(realm, roleIds, roleName, roles)) {
+                missing.add(roleName);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            for (RoleModel role : realm.getRoles()) {
+                roleIds.put(role.getName(), role.getId());
+                if (missing.remove(role.getName())) {
+                    roles.put(role.getName(), role);
+                }
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            provision(session, realm.getId(), roleIds, missing);
+            for (String roleName : missing) {
+                lookup(realm, roleIds, roleName, roles);
+            }
+        }
+        return roles;
+    }
+
+    public void invalidate(String realmId, String roleName) {
+        Map<String, String> roleIds = roleIdsByRealm.get(realmId);
+        if (roleIds != null) {
+            roleIds.remove(roleName);
+        }
+    }
+
+    public void invalidateRealm(String realmId) {
+        roleIdsByRealm.remove(realmId);
+        provisionLocks.remove(realmId);
+    }
+
+    public void invalidateAll() {
+        roleIdsByRealm.clear();
+        provisionLocks.clear();
+    }
+
+    private boolean lookup(RealmModel realm, Map<String, String> roleIds, String roleName, Map<String, RoleModel> roles) {
+        String roleId = roleIds.get(roleName);
+        RoleModel role = roleId != null ? realm.getRoleById(roleId) : null;
+        if (role != null && roleName.equals(role.getName())) {
+            roles.put(roleName, role);
+            return true;
+        }
+        roleIds.remove(roleName);
+        return false;
+    }
+
+    private void provision(KeycloakSession session, String realmId, Map<String, String> roleIds, Set<String> roleNames) {
+        synchronized (provisionLocks.computeIfAbsent(realmId, id -> new Object())) {
+            try {
+                addRoles(session, realmId, roleIds, roleNames);
+            } catch (ModelDuplicateException e) {
+                // Another node added one of the roles first, the retry finds it.
+                addRoles(session, realmId, roleIds, roleNames);
+            }
+        }
+    }
+
+    private void addRoles(KeycloakSession session, String realmId, Map<String, String> roleIds, Set<String> roleNames) {
+        KeycloakModelUtils.runJobInTransaction(session.getKeycloakSessionFactory(), provisioningSession -> {
+            RealmModel realm = provisioningSession.realms().getRealm(realmId);
+            for (String roleName : roleNames) {
+                RoleModel role = realm.getRole(roleName);
+                if (role == null) {
+                    role = realm.addRole(roleName);
+                }
+                roleIds.put(roleName, role.getId());
+            }
+        });
+    }
+}
@@ -0,0 +1,118 @@
+package bg.sirma.keycloak.external.cache;
+
+import bg.sirma.keycloak.external.SimpleUserModel;
+import bg.sirma.keycloak.external.UserColumn;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Cross-session cache of external users, shared by all providers created for one component.
+ * Users are indexed by username and email; lookups that found nothing are remembered for a
+ * shorter period so that unknown usernames do not reach the database on every attempt.
+ * Concurrent lookups of the same missing entry share a single load.
+ */
+public class UserCache {
+
+    private final boolean enabled;
+    private final Cache<String, Optional<SimpleUserModel>> usersByUsername;
+    private final Cache<String, Optional<SimpleUserModel>> usersByEmail;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public UserCache(long maxSize, long ttlSeconds, long negativeTtlSeconds) {
+        this.enabled = maxSize > 0 && ttlSeconds > 0;
+        this.usersByUsername = createCache(maxSize, ttlSeconds, negativeTtlSeconds);
+        this.usersByEmail = createCache(maxSize, ttlSeconds, negativeTtlSeconds);
+    }
+
+    public SimpleUserModel get(UserColumn column, String value, Function<String, SimpleUserModel> loader) {
+        if (!enabled) {
+            return loader.apply(value);
+        }
+
+        boolean[] loaded = new boolean[1];
+        Optional<SimpleUserModel> user = getCache(column).get(value, key -> {
+            loaded[0] = true;
+            return Optional.ofNullable(loader.apply(key));
+        });
+
+        if (loaded[0]) {
+            misses.increment();
+            user.ifPresent(u -> index(column, u));
+        } else {
+            hits.increment();
+        }
+        return user.orElse(null);
+    }
+
+    public void invalidate(String username) {
+        Optional<SimpleUserModel> user = usersByUsername.getIfPresent(username);
+        usersByUsername.invalidate(username);
+        if (user != null && user.isPresent() && user.get().getEmail() != null) {
+            usersByEmail.invalidate(user.get().getEmail());
+        }
+    }
+
+    public void invalidateAll() {
+        usersByUsername.invalidateAll();
+        usersByEmail.invalidateAll();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    private Cache<String, Optional<SimpleUserModel>> getCache(UserColumn column) {
+        switch (column) {
+            case USERNAME:
+                return usersByUsername;
+            case EMAIL:
+                return usersByEmail;
+        }
+        throw new RuntimeException("Unsupported lookup column: " + column.getName());
+    }
+
+    private void index(UserColumn column, SimpleUserModel user) {
+        // A user loaded by one key is also reachable by the other, replacing a remembered miss.
+        if (column == UserColumn.EMAIL) {
+            usersByUsername.put(user.getUsername(), Optional.of(user));
+        } else if (user.getEmail() != null) {
+            usersByEmail.put(user.getEmail(), Optional.of(user));
+        }
+    }
+
+    private static Cache<String, Optional<SimpleUserModel>> createCache(long maxSize, long ttlSeconds, long negativeTtlSeconds) {
+        long ttlNanos = TimeUnit.SECONDS.toNanos(Math.max(ttlSeconds, 0));
+        long negativeTtlNanos = TimeUnit.SECONDS.toNanos(Math.max(negativeTtlSeconds, 0));
+
+        return Caffeine.newBuilder()
+                .maximumSize(Math.max(maxSize, 0))
+                .expireAfter(new Expiry<String, Optional<SimpleUserModel>>() {
+                    @Override
+                    public long expireAfterCreate(String key, Optional<SimpleUserModel> user, long currentTime) {
+                        return user.isPresent() ? ttlNanos : negativeTtlNanos;
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String key, Optional<SimpleUserModel> user, long currentTime, long currentDuration) {
+                        return user.isPresent() ? ttlNanos : negativeTtlNanos;
+                    }
+
+                    @Override
+                    public long expireAfterRead(String key, Optional<SimpleUserModel> user, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .build();
+    }
+}
@@ -0,0 +1,5 @@
+package bg.sirma.keycloak.external.config;
+
+public enum CountMode {
+    EXACT, ESTIMATE
+}
@@ -14,9 +14,16 @@ public class DatabaseConfig {
     private final String roleColumn;
     private final String userIdForeignKeyColumn;
     private final String userIdPrimaryKeyColumn;
+    private final PagingMode pagingMode;
+    private final int fetchSize;
+    private final SearchMode searchMode;
+    private final CountMode countMode;
+    private final String updatedAtColumn;
 
     public DatabaseConfig(String userTable, String usernameColumn, String emailColumn, String first, String last, String enabled, EnabledColumnType enabledColumnType, String passwordColumn,
-                          String rolesTable, String roleColumn, String userIdForeignKeyColumn, String userIdPrimaryKeyColumn) {
+                          String rolesTable, String roleColumn, String userIdForeignKeyColumn, String userIdPrimaryKeyColumn,
+                          PagingMode pagingMode, int fetchSize, SearchMode searchMode, CountMode countMode,
+                          String updatedAtColumn) {
         this.userTable = userTable;
         this.usernameColumn = usernameColumn;
         this.emailColumn = emailColumn;
@@ -29,6 +36,11 @@ public class DatabaseConfig {
         this.roleColumn = roleColumn;
         this.userIdForeignKeyColumn = userIdForeignKeyColumn;
         this.userIdPrimaryKeyColumn = userIdPrimaryKeyColumn;
+        this.pagingMode = pagingMode;
+        this.fetchSize = fetchSize;
+        this.searchMode = searchMode;
+        this.countMode = countMode;
+        this.updatedAtColumn = updatedAtColumn;
     }
 
     public String getUserTable() {
@@ -78,4 +90,24 @@ public class DatabaseConfig {
     public String getUserIdPrimaryKeyColumn() {
         return userIdPrimaryKeyColumn;
     }
+
+    public PagingMode getPagingMode() {
+        return pagingMode;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    public SearchMode getSearchMode() {
+        return searchMode;
+    }
+
+    public CountMode getCountMode() {
+        return countMode;
+    }
+
+    public String getUpdatedAtColumn() {
+        return updatedAtColumn;
+    }
 }
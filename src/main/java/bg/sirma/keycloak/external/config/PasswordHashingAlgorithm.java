@@ -1,7 +1,10 @@
 package bg.sirma.keycloak.external.config;
 
 public enum PasswordHashingAlgorithm {
-    PKCS5S2("Atlassian PKCS5S2");
+    PKCS5S2("Atlassian PKCS5S2"),
+    BCRYPT("BCrypt"),
+    PBKDF2_SHA256("PBKDF2-SHA256"),
+    ARGON2("Argon2");
 
     private String name;
 
@@ -0,0 +1,39 @@
+package bg.sirma.keycloak.external.config;
+
+public enum SearchMode {
+    CONTAINS("like"),
+    PREFIX("like"),
+    TRIGRAM("ilike"),
+    FULL_TEXT(null);
+
+    private final String operator;
+
+    SearchMode(String operator) {
+        this.operator = operator;
+    }
+
+    public String getOperator() {
+        if (operator == null) {
+            throw new UnsupportedOperationException("Search mode " + name() + " has no comparison operator");
+        }
+        return operator;
+    }
+
+    /**
+     * @return the mode used to match a single column, since full text search only covers the whole document
+     */
+    public SearchMode forColumn() {
+        return this == FULL_TEXT ? CONTAINS : this;
+    }
+
+    public String pattern(String term) {
+        String value = term.trim();
+        while (value.startsWith("%")) {
+            value = value.substring(1);
+        }
+        while (value.endsWith("%")) {
+            value = value.substring(0, value.length() - 1);
+        }
+        return this == PREFIX ? value + "%" : "%" + value + "%";
+    }
+}
@@ -0,0 +1,78 @@
+package bg.sirma.keycloak.external.credential;
+
+import org.bouncycastle.crypto.generators.Argon2BytesGenerator;
+import org.bouncycastle.crypto.params.Argon2Parameters;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+/**
+ * Verifies Argon2 hashes in the PHC string format, e.g.
+ * {@code $argon2id$v=19$m=65536,t=3,p=4$<base64 salt>$<base64 hash>}.
+ */
+public class Argon2PasswordVerifier implements PasswordVerifier {
+
+    @Override
+    public boolean verify(String password, String hash) {
+        String[] parts = hash.split("\\$");
+        if (parts.length != 6 || !parts[0].isEmpty()) {
+            return false;
+        }
+
+        try {
+            int type = getType(parts[1]);
+            int version = Integer.parseInt(parts[2].substring("v=".length()));
+            int memory = 0;
+            int iterations = 0;
+            int parallelism = 0;
+            for (String parameter : parts[3].split(",")) {
+                String[] pair = parameter.split("=");
+                if (pair.length != 2) {
+                    return false;
+                }
+                switch (pair[0]) {
+                    case "m":
+                        memory = Integer.parseInt(pair[1]);
+                        break;
+                    case "t":
+                        iterations = Integer.parseInt(pair[1]);
+                        break;
+                    case "p":
+                        parallelism = Integer.parseInt(pair[1]);
+                        break;
+                }
+            }
+            byte[] salt = Base64.getDecoder().decode(parts[4]);
+            byte[] expected = Base64.getDecoder().decode(parts[5]);
+
+            Argon2Parameters parameters = new Argon2Parameters.Builder(type)
+                    .withVersion(version)
+                    .withMemoryAsKB(memory)
+                    .withIterations(iterations)
+                    .withParallelism(parallelism)
+                    .withSalt(salt)
+                    .build();
+            Argon2BytesGenerator generator = new Argon2BytesGenerator();
+            generator.init(parameters);
+            byte[] actual = new byte[expected.length];
+            generator.generateBytes(password.getBytes(StandardCharsets.UTF_8), actual);
+
+            return MessageDigest.isEqual(expected, actual);
+        } catch (IllegalArgumentException | IllegalStateException | IndexOutOfBoundsException e) {
+            return false;
+        }
+    }
+
+    private static int getType(String name) {
+        switch (name) {
+            case "argon2d":
+                return Argon2Parameters.ARGON2_d;
+            case "argon2i":
+                return Argon2Parameters.ARGON2_i;
+            case "argon2id":
+                return Argon2Parameters.ARGON2_id;
+        }
+        throw new IllegalArgumentException("Unsupported Argon2 type: " + name);
+    }
+}
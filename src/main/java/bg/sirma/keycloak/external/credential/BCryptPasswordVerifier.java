@@ -0,0 +1,19 @@
+package bg.sirma.keycloak.external.credential;
+
+import org.bouncycastle.crypto.DataLengthException;
+import org.bouncycastle.crypto.generators.OpenBSDBCrypt;
+
+/**
+ * Verifies OpenBSD style bcrypt hashes ({@code $2a$}, {@code $2b$} and {@code $2y$}).
+ */
+public class BCryptPasswordVerifier implements PasswordVerifier {
+
+    @Override
+    public boolean verify(String password, String hash) {
+        try {
+            return OpenBSDBCrypt.checkPassword(hash, password.toCharArray());
+        } catch (IllegalArgumentException | DataLengthException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package bg.sirma.keycloak.external.credential;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.keycloak.models.ModelException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs password verification on a dedicated, bounded pool so that a burst of logins cannot pin every
+ * request thread on key derivation. When the pool and its queue are full, verification is rejected
+ * straight away instead of queuing further. Rejections and timeouts are reported with a {@link ModelException}
+ * rather than as a wrong password, so that they do not count as failed login attempts.
+ * <p>
+ * Successful verifications can optionally be remembered for a short time. Entries are keyed by the
+ * username, the stored hash and an HMAC of the password under a per-instance random key, so a hash
+ * changed in the external database never matches an old entry and no password is kept in memory.
+ */
+public class CredentialVerifier {
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    private final PasswordVerifier passwordVerifier;
+    private final ThreadPoolExecutor executor;
+    private final long timeoutMillis;
+    private final Cache<String, Boolean> verified;
+    private final SecretKeySpec memoKey;
+    private final LongAdder rejected = new LongAdder();
+
+    public CredentialVerifier(PasswordVerifier passwordVerifier, String name, int threads, int queueSize,
+                              long timeoutMillis, long memoTtlSeconds) {
+        this.passwordVerifier = passwordVerifier;
+        this.timeoutMillis = timeoutMillis;
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(queueSize, 1)),
+                runnable -> {
+                    Thread thread = new Thread(runnable, name + "-verifier-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+
+        if (memoTtlSeconds > 0) {
+            this.verified = Caffeine.newBuilder()
+                    .maximumSize(10000)
+                    .expireAfterWrite(memoTtlSeconds, TimeUnit.SECONDS)
+                    .build();
+            byte[] key = new byte[32];
+            new SecureRandom().nextBytes(key);
+            this.memoKey = new SecretKeySpec(key, HMAC_ALGORITHM);
+        } else {
+            this.verified = null;
+            this.memoKey = null;
+        }
+    }
+
+    public boolean verify(String username, String password, String hash) {
+        if (hash == null || password == null) {
+            return false;
+        }
+
+        String memoEntry = verified != null ? memoEntry(username, password, hash) : null;
+        if (memoEntry != null && verified.getIfPresent(memoEntry) != null) {
+            return true;
+        }
+
+        Future<Boolean> result;
+        try {
+            result = executor.submit(() -> passwordVerifier.verify(password, hash));
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw new ModelException("Password verification is temporarily unavailable", e);
+        }
+
+        boolean valid;
+        try {
+            valid = result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            result.cancel(true);
+            throw new ModelException("Password verification timed out", e);
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new ModelException("Password verification was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+
+        if (valid && memoEntry != null) {
+            verified.put(memoEntry, Boolean.TRUE);
+        }
+        return valid;
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        if (verified != null) {
+            verified.invalidateAll();
+        }
+    }
+
+    private String memoEntry(String username, String password, String hash) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(memoKey);
+            byte[] digest = mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+            return username + '\u0000' + hash + '\u0000' + Base64.getEncoder().encodeToString(digest);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
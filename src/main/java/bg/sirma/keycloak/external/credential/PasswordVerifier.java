@@ -0,0 +1,11 @@
+package bg.sirma.keycloak.external.credential;
+
+public interface PasswordVerifier {
+
+    /**
+     * @param password the password entered by the user
+     * @param hash     the hash stored in the external database
+     * @return whether the password matches the hash
+     */
+    boolean verify(String password, String hash);
+}
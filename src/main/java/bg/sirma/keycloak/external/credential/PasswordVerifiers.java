@@ -0,0 +1,29 @@
+package bg.sirma.keycloak.external.credential;
+
+import bg.sirma.keycloak.external.config.PasswordHashingAlgorithm;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+public final class PasswordVerifiers {
+
+    private static final Map<PasswordHashingAlgorithm, PasswordVerifier> VERIFIERS = new EnumMap<>(PasswordHashingAlgorithm.class);
+
+    static {
+        VERIFIERS.put(PasswordHashingAlgorithm.PKCS5S2, new Pkcs5S2PasswordVerifier());
+        VERIFIERS.put(PasswordHashingAlgorithm.BCRYPT, new BCryptPasswordVerifier());
+        VERIFIERS.put(PasswordHashingAlgorithm.PBKDF2_SHA256, new Pbkdf2Sha256PasswordVerifier());
+        VERIFIERS.put(PasswordHashingAlgorithm.ARGON2, new Argon2PasswordVerifier());
+    }
+
+    private PasswordVerifiers() {
+    }
+
+    public static PasswordVerifier forAlgorithm(PasswordHashingAlgorithm algorithm) {
+        PasswordVerifier verifier = VERIFIERS.get(algorithm);
+        if (verifier == null) {
+            throw new RuntimeException(algorithm.getName() + " is not supported.");
+        }
+        return verifier;
+    }
+}
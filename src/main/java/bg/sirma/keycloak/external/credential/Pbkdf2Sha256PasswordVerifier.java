@@ -0,0 +1,38 @@
+package bg.sirma.keycloak.external.credential;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+/**
+ * Verifies PBKDF2-HMAC-SHA256 hashes in the {@code pbkdf2_sha256$<iterations>$<salt>$<base64 hash>} format.
+ */
+public class Pbkdf2Sha256PasswordVerifier implements PasswordVerifier {
+
+    private static final String PREFIX = "pbkdf2_sha256";
+
+    @Override
+    public boolean verify(String password, String hash) {
+        String[] parts = hash.split("\\$");
+        if (parts.length != 4 || !PREFIX.equals(parts[0])) {
+            return false;
+        }
+
+        try {
+            int iterations = Integer.parseInt(parts[1]);
+            byte[] salt = parts[2].getBytes(StandardCharsets.UTF_8);
+            byte[] expected = Base64.getDecoder().decode(parts[3]);
+
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, expected.length * 8);
+            byte[] actual = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+            spec.clearPassword();
+
+            return MessageDigest.isEqual(expected, actual);
+        } catch (IllegalArgumentException | GeneralSecurityException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package bg.sirma.keycloak.external.credential;
+
+import com.atlassian.security.password.DefaultPasswordEncoder;
+
+public class Pkcs5S2PasswordVerifier implements PasswordVerifier {
+
+    @Override
+    public boolean verify(String password, String hash) {
+        return DefaultPasswordEncoder.getDefaultInstance().isValidPassword(password, hash);
+    }
+}
@@ -0,0 +1,117 @@
+package bg.sirma.keycloak.external.dao;
+
+import bg.sirma.keycloak.external.Pair;
+import bg.sirma.keycloak.external.config.DatabaseConfig;
+import bg.sirma.keycloak.external.config.SearchMode;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks and creates the indexes that let PostgreSQL serve {@link UserDAO#searchForUser} without a sequential scan
+ * in the configured {@link SearchMode}.
+ */
+public class SearchIndexDAO {
+    private static final int MAX_IDENTIFIER_LENGTH = 63;
+    private static final String INDEX_VALIDITY_SQL = "select i.indisvalid from pg_index i" +
+            " join pg_class c on c.oid = i.indexrelid join pg_class t on t.oid = i.indrelid" +
+            " where t.relname = ? and c.relname = ?";
+
+    private final Connection connection;
+    private final DatabaseConfig databaseConfig;
+
+    public SearchIndexDAO(Connection connection, DatabaseConfig databaseConfig) {
+        this.connection = connection;
+        this.databaseConfig = databaseConfig;
+    }
+
+    /**
+     * @return the indexes that do not exist or were left invalid by a failed concurrent build
+     */
+    public List<String> getMissingIndexes() {
+        List<String> missing = new ArrayList<>();
+
+        try (PreparedStatement statement = connection.prepareStatement(INDEX_VALIDITY_SQL)) {
+            for (Pair<String, String> index : getIndexes()) {
+                if (!Boolean.TRUE.equals(isValid(statement, index.getLeft()))) {
+                    missing.add(index.getLeft());
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        return missing;
+    }
+
+    public void createIndexes() {
+        try (Statement statement = connection.createStatement();
+             PreparedStatement validity = connection.prepareStatement(INDEX_VALIDITY_SQL)) {
+            if (databaseConfig.getSearchMode() == SearchMode.TRIGRAM) {
+                statement.execute("create extension if not exists pg_trgm");
+            }
+            for (Pair<String, String> index : getIndexes()) {
+                // "if not exists" would keep an invalid index from an earlier failed build, drop it first.
+                if (Boolean.FALSE.equals(isValid(validity, index.getLeft()))) {
+                    statement.execute("drop index concurrently if exists " + quote(index.getLeft()));
+                }
+                statement.execute(index.getRight());
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return whether the index is valid, or {@code null} if it does not exist
+     */
+    private Boolean isValid(PreparedStatement statement, String indexName) throws SQLException {
+        statement.setString(1, databaseConfig.getUserTable().trim());
+        statement.setString(2, indexName);
+        try (ResultSet resultSet = statement.executeQuery()) {
+            return resultSet.next() ? resultSet.getBoolean(1) : null;
+        }
+    }
+
+    private List<Pair<String, String>> getIndexes() {
+        String usernameColumn = quote(databaseConfig.getUsernameColumn());
+        String emailColumn = quote(databaseConfig.getEmailColumn());
+        String fullName = "(" + quote(databaseConfig.getFirst()) + " || ' ' || " + quote(databaseConfig.getLast()) + ")";
+
+        List<Pair<String, String>> indexes = new ArrayList<>();
+        switch (databaseConfig.getSearchMode()) {
+            case PREFIX:
+                indexes.add(index("username_prefix", "btree", usernameColumn + " text_pattern_ops"));
+                indexes.add(index("email_prefix", "btree", emailColumn + " text_pattern_ops"));
+                indexes.add(index("name_prefix", "btree", fullName + " text_pattern_ops"));
+                break;
+            case TRIGRAM:
+                indexes.add(index("username_trgm", "gin", usernameColumn + " gin_trgm_ops"));
+                indexes.add(index("email_trgm", "gin", emailColumn + " gin_trgm_ops"));
+                indexes.add(index("name_trgm", "gin", fullName + " gin_trgm_ops"));
+                break;
+            case FULL_TEXT:
+                indexes.add(index("fts", "gin", "(" + UserDAO.fullTextDocument(databaseConfig, "") + ")"));
+                break;
+        }
+        return indexes;
+    }
+
+    private Pair<String, String> index(String suffix, String method, String expression) {
+        String name = databaseConfig.getUserTable().trim() + "_kc_" + suffix + "_idx";
+        if (name.length() > MAX_IDENTIFIER_LENGTH) {
+            name = name.substring(name.length() - MAX_IDENTIFIER_LENGTH);
+        }
+        String ddl = String.format("create index concurrently if not exists %s on %s using %s (%s)",
+                quote(name), quote(databaseConfig.getUserTable().trim()), method, expression);
+        return Pair.of(name, ddl);
+    }
+
+    private static String quote(String identifier) {
+        return "\"" + identifier + "\"";
+    }
+}
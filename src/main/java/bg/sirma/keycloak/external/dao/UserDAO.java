@@ -3,286 +3,469 @@ package bg.sirma.keycloak.external.dao;
 import bg.sirma.keycloak.external.Pair;
 import bg.sirma.keycloak.external.SimpleUserModel;
 import bg.sirma.keycloak.external.UserColumn;
+import bg.sirma.keycloak.external.cache.PageBoundaryCache;
+import bg.sirma.keycloak.external.config.CountMode;
 import bg.sirma.keycloak.external.config.DatabaseConfig;
 import bg.sirma.keycloak.external.config.EnabledColumnType;
+import bg.sirma.keycloak.external.config.PagingMode;
+import bg.sirma.keycloak.external.config.SearchMode;
+import bg.sirma.keycloak.external.metrics.Operation;
+import bg.sirma.keycloak.external.metrics.ProviderMetrics;
 import org.apache.commons.lang.StringUtils;
-import org.keycloak.models.RealmModel;
-import org.keycloak.models.RoleModel;
 
+import javax.sql.DataSource;
 import java.sql.*;
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
 
 public class UserDAO {
     private static final String userTableAlias = "user_table";
-    private static final String roleTableAlias = "role_table";
-    private final Connection connection;
+    // Splits the search with the same parser as the document, so that emails and dotted names stay whole lexemes,
+    // and matches each lexeme as a prefix.
+    private static final String PREFIX_TS_QUERY = "to_tsquery('simple', (select string_agg(" +
+            "'''' || replace(replace(lexeme, '\\', '\\\\'), '''', '''''') || ''':*', ' & ')" +
+            " from unnest(to_tsvector('simple', ?))))";
+    private static final Pattern SEARCH_TERM = Pattern.compile("[\\p{L}\\p{N}]");
+    private final DataSource dataSource;
     private final DatabaseConfig databaseConfig;
+    private final PageBoundaryCache pageBoundaries;
+    private final ProviderMetrics metrics;
     private final boolean supportsRoles;
     private final String baseSql;
-    private final String groupBySql;
+    private final String rolesSql;
+    private final String credentialSql;
+    private final String roleNamesSql;
+    private volatile String idArrayType;
 
-    public UserDAO(Connection connection, DatabaseConfig cfg) {
-        this.connection = connection;
+    public UserDAO(DataSource dataSource, DatabaseConfig cfg, PageBoundaryCache pageBoundaries, ProviderMetrics metrics) {
+        this.dataSource = dataSource;
         this.databaseConfig = cfg;
+        this.pageBoundaries = pageBoundaries;
+        this.metrics = metrics;
 
-        if (StringUtils.isNotEmpty(cfg.getRolesTable()) && StringUtils.isNotEmpty(cfg.getRoleColumn()) &&
-                StringUtils.isNotEmpty(cfg.getUserIdForeignKeyColumn()) && StringUtils.isNotEmpty(cfg.getUserIdPrimaryKeyColumn())) {
-            supportsRoles = true;
-            this.baseSql = String.format("select %s.\"%s\" as user_name, %s.\"%s\" as email_address," +
-                            " %s.\"%s\" as first_name, %s.\"%s\" as last_name, %s.\"%s\" as  is_enabled," +
-                            " %s.\"%s\" as credential, array_agg(%s.\"%s\") as user_roles from \"%s\" %s " +
-                    " left join \"%s\" as %s on %s.\"%s\"=%s.\"%s\" ",
-                    userTableAlias, cfg.getUsernameColumn(),
-                    userTableAlias, cfg.getEmailColumn(),
-                    userTableAlias, cfg.getFirst(),
-                    userTableAlias, cfg.getLast(),
-                    userTableAlias, cfg.getEnabled(),
-                    userTableAlias, cfg.getPasswordColumn(),
-                    roleTableAlias, cfg.getRoleColumn(),
-                    cfg.getUserTable(), userTableAlias,
-                    cfg.getRolesTable(), roleTableAlias,
-                    roleTableAlias, cfg.getUserIdForeignKeyColumn(),
-                    userTableAlias, cfg.getUserIdPrimaryKeyColumn());
-            this.groupBySql = " group by 1, 2, 3, 4, 5, 6 ";
-        } else {
-            supportsRoles = false;
-            this.baseSql = String.format("select %s.\"%s\" as user_name, %s.\"%s\" as email_address," +
-                            " %s.\"%s\" as first_name, %s.\"%s\" as last_name, %s.\"%s\" as  is_enabled," +
-                            " %s.\"%s\" as credential from \"%s\" %s ",
-                    userTableAlias, cfg.getUsernameColumn(),
-                    userTableAlias, cfg.getEmailColumn(),
-                    userTableAlias, cfg.getFirst(),
-                    userTableAlias, cfg.getLast(),
-                    userTableAlias, cfg.getEnabled(),
-                    userTableAlias, cfg.getPasswordColumn(),
-                    cfg.getUserTable(), userTableAlias);
-            this.groupBySql = "";
-        }
-    }
-
-    public Connection getConnection() {
-        return connection;
+        this.supportsRoles = StringUtils.isNotEmpty(cfg.getRolesTable()) && StringUtils.isNotEmpty(cfg.getRoleColumn()) &&
+                StringUtils.isNotEmpty(cfg.getUserIdForeignKeyColumn()) && StringUtils.isNotEmpty(cfg.getUserIdPrimaryKeyColumn());
+        this.baseSql = String.format("select %s.\"%s\" as user_name, %s.\"%s\" as email_address," +
+                        " %s.\"%s\" as first_name, %s.\"%s\" as last_name, %s.\"%s\" as  is_enabled%s from \"%s\" %s ",
+                userTableAlias, cfg.getUsernameColumn(),
+                userTableAlias, cfg.getEmailColumn(),
+                userTableAlias, cfg.getFirst(),
+                userTableAlias, cfg.getLast(),
+                userTableAlias, cfg.getEnabled(),
+                supportsRoles ? String.format(", %s.\"%s\" as user_id", userTableAlias, cfg.getUserIdPrimaryKeyColumn()) : "",
+                cfg.getUserTable(), userTableAlias);
+        this.rolesSql = supportsRoles ? String.format("select \"%s\", \"%s\" from \"%s\" where \"%s\" = ANY(?)",
+                cfg.getUserIdForeignKeyColumn(), cfg.getRoleColumn(), cfg.getRolesTable(), cfg.getUserIdForeignKeyColumn()) : null;
+        this.roleNamesSql = supportsRoles ? String.format("select distinct \"%s\" from \"%s\"",
+                cfg.getRoleColumn(), cfg.getRolesTable()) : null;
+        this.credentialSql = String.format("select \"%s\", \"%s\" from \"%s\" where \"%s\" = ?",
+                cfg.getPasswordColumn(), cfg.getEnabled(), cfg.getUserTable(), cfg.getUsernameColumn());
     }
 
-    public SimpleUserModel getUserByColumn(RealmModel realm, UserColumn column, String value) {
+    public SimpleUserModel getUserByColumn(UserColumn column, String value) {
         String columnToSearch = column.columnName(databaseConfig);
         String sql = baseSql +
-                " where "+userTableAlias+".\"" + columnToSearch + "\" = ? " +
-                (supportsRoles ? groupBySql : "");
+                " where "+userTableAlias+".\"" + columnToSearch + "\" = ? ";
 
-        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+        try (Connection connection = getConnection();
+             PreparedStatement statement = connection.prepareStatement(sql)) {
             statement.setString(1, value);
-            try (ResultSet resultSet = statement.executeQuery()) {
-                return getSingleUserModel(realm, resultSet);
-            }
+            Operation operation = column == UserColumn.EMAIL ? Operation.LOOKUP_BY_EMAIL : Operation.LOOKUP_BY_USERNAME;
+            SimpleUserModel user = metrics.timeQuery(operation, sql, 1, () -> {
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    return getSingleUserModel(resultSet);
+                }
+            });
+            metrics.addRowsFetched(user != null ? 1 : 0);
+            return user;
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
     }
 
-    public Set<RoleModel> getRoleMappings(RealmModel realm, String[] roles) {
-        Set<RoleModel> roleMappings = new HashSet<>();
-        for (String role : roles) {
-            RoleModel roleMapping = realm.getRole(role);
-            if (roleMapping == null) {
-                roleMapping = realm.addRole(role);
-            }
-            roleMappings.add(roleMapping);
+    public Set<String> getRoles(SimpleUserModel user) {
+        if (!supportsRoles) {
+            return new HashSet<>();
         }
-        return roleMappings;
-    }
 
-    public int getUsersCount() {
-        String sql = "select count(*)" +
-                " from \"" + databaseConfig.getUserTable().trim() + "\"";
+        try (Connection connection = getConnection()) {
+            Map<String, Set<String>> roles = loadRoles(connection, Collections.singletonList(user));
+            return roles.getOrDefault(String.valueOf(user.getId()), new HashSet<>());
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+    /**
+     * @return the names of all roles held by at least one external user
+     */
+    public Set<String> getRoleNames() {
+        if (!supportsRoles) {
+            return new HashSet<>();
+        }
 
-            try (ResultSet resultSet = statement.executeQuery()) {
-                if (resultSet.next()) {
-                    return resultSet.getInt(1);
+        try (Connection connection = getConnection();
+             PreparedStatement statement = connection.prepareStatement(roleNamesSql)) {
+            return metrics.timeQuery(Operation.LOAD_ROLES, roleNamesSql, 0, () -> {
+                Set<String> roleNames = new HashSet<>();
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        if (resultSet.getString(1) != null) {
+                            roleNames.add(resultSet.getString(1));
+                        }
+                    }
                 }
-                throw new RuntimeException("Error while fetching users count.");
-            }
+                return roleNames;
+            });
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
     }
 
-    public List<SimpleUserModel> getUsers(RealmModel realm) {
-        return getUsers(realm, null, null);
-    }
-
-    public List<SimpleUserModel> getUsers(RealmModel realm, Integer firstResult, Integer maxResults) {
-        try (PreparedStatement statement = connection.prepareStatement(baseSql + groupBySql)) {
-            if (maxResults != null) {
-                if (firstResult != null) {
-                    maxResults += firstResult;
+    /**
+     * @return the stored password hash and whether the user is enabled, or {@code null} if the user does not exist
+     */
+    public Pair<String, Boolean> getCredential(String username) {
+        try (Connection connection = getConnection();
+             PreparedStatement statement = connection.prepareStatement(credentialSql)) {
+            statement.setString(1, username);
+            return metrics.timeQuery(Operation.LOAD_CREDENTIAL, credentialSql, 1, () -> {
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    return resultSet.next() ? Pair.of(resultSet.getString(1), isEnabled(resultSet, 2)) : null;
                 }
-                statement.setMaxRows(maxResults);
-            }
-            try (ResultSet resultSet = statement.executeQuery()) {
-                return getUserModels(realm, firstResult, resultSet);
-            }
+            });
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
     }
 
-    public List<SimpleUserModel> searchForUser(RealmModel realm, String search, Integer firstResult, Integer maxResults) {
-
-        search = search.trim();
-        if (!search.startsWith("%")) {
-            search = "%" + search;
+    public int getUsersCount() {
+        if (databaseConfig.getCountMode() == CountMode.ESTIMATE) {
+            long estimate = getEstimatedUsersCount();
+            if (estimate >= 0) {
+                return (int) Math.min(estimate, Integer.MAX_VALUE);
+            }
         }
-        if (!search.endsWith("%")) {
-            search += "%";
+        return countUsers(null, Collections.emptyList());
+    }
+
+    public int getUsersCount(String search) {
+        Pair<String, List<Object>> condition = getSearchCondition(search);
+        return countUsers(condition.getLeft(), condition.getRight());
+    }
+
+    public int getUsersCount(Map<String, String> params) {
+        Pair<String, List<Object>> condition = getParamsCondition(params);
+        return countUsers(condition.getLeft(), condition.getRight());
+    }
+
+    public List<SimpleUserModel> getUsers() {
+        List<SimpleUserModel> users = new ArrayList<>();
+        streamUsers(users::add);
+        return users;
+    }
+
+    public void streamUsers(Consumer<SimpleUserModel> consumer) {
+        streamUsers(null, Collections.emptyList(), consumer);
+    }
+
+    public void streamUsersChangedSince(java.util.Date since, Consumer<SimpleUserModel> consumer) {
+        if (StringUtils.isEmpty(databaseConfig.getUpdatedAtColumn())) {
+            throw new IllegalStateException("No updated at column is configured for the user table.");
         }
-        String sql = String.format("%s where %s.\"%s\" like ? or %s.\"%s\" like ? or %s.\"%s\" || ' ' || %s.\"%s\" like ? %s",
-                baseSql,
-                userTableAlias, databaseConfig.getUsernameColumn(),
-                userTableAlias, databaseConfig.getEmailColumn(),
-                userTableAlias, databaseConfig.getFirst(),
-                userTableAlias, databaseConfig.getLast(),
-                supportsRoles ? groupBySql : "");
-
-        try (PreparedStatement statement = connection.prepareStatement(sql)) {
-            statement.setString(1, search);
-            statement.setString(2, search);
-            statement.setString(3, search);
-            if (maxResults != null) {
-                if (firstResult != null) {
-                    maxResults += firstResult;
+        String condition = String.format("%s.\"%s\" > ?", userTableAlias, databaseConfig.getUpdatedAtColumn());
+        streamUsers(condition, Collections.<Object>singletonList(new Timestamp(since.getTime())), consumer);
+    }
+
+    private void streamUsers(String condition, List<Object> params, Consumer<SimpleUserModel> consumer) {
+        String sql = baseSql + (condition != null ? " where " + condition : "") + " order by 1";
+
+        try (Connection connection = getConnection()) {
+            // PostgreSQL only honours the fetch size with a server-side cursor, which requires a transaction.
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                int i = 1;
+                for (Object p : params) {
+                    statement.setObject(i++, p);
                 }
-                statement.setMaxRows(maxResults);
-            }
-            try (ResultSet resultSet = statement.executeQuery()) {
-                return getUserModels(realm, firstResult, resultSet);
+                statement.setFetchSize(databaseConfig.getFetchSize());
+                int fetchSize = Math.max(databaseConfig.getFetchSize(), 1);
+                // Only the database work is timed, the consumer may block on work of its own.
+                try (ResultSet resultSet = metrics.timeQuery(Operation.LIST, sql, params.size(), statement::executeQuery)) {
+                    List<SimpleUserModel> chunk;
+                    do {
+                        chunk = metrics.time(Operation.FETCH_ROWS, () -> fetchChunk(resultSet, fetchSize));
+                        metrics.addRowsFetched(chunk.size());
+                        withRoles(connection, chunk).forEach(consumer);
+                    } while (chunk.size() >= fetchSize);
+                }
+            } finally {
+                connection.rollback();
+                connection.setAutoCommit(autoCommit);
             }
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
     }
 
-    public List<SimpleUserModel> searchForUser(RealmModel realm, Map<String, String> params, Integer firstResult, Integer maxResults) {
-        params = processParams(params);
+    public List<SimpleUserModel> getUsers(Integer firstResult, Integer maxResults) {
+        return queryUsers(Operation.LIST, null, Collections.emptyList(), firstResult, maxResults);
+    }
+
+    public List<SimpleUserModel> searchForUser(String search, Integer firstResult, Integer maxResults) {
+        Pair<String, List<Object>> condition = getSearchCondition(search);
+        return queryUsers(Operation.SEARCH, condition.getLeft(), condition.getRight(), firstResult, maxResults);
+    }
+
+    public List<SimpleUserModel> searchForUser(Map<String, String> params, Integer firstResult, Integer maxResults) {
+        Pair<String, List<Object>> condition = getParamsCondition(params);
+        return queryUsers(Operation.SEARCH, condition.getLeft(), condition.getRight(), firstResult, maxResults);
+    }
+
+    public static String fullTextDocument(DatabaseConfig cfg, String qualifier) {
+        return String.format("to_tsvector('simple', coalesce(%1$s\"%2$s\", '') || ' ' || coalesce(%1$s\"%3$s\", '')" +
+                        " || ' ' || coalesce(%1$s\"%4$s\", '') || ' ' || coalesce(%1$s\"%5$s\", ''))",
+                qualifier, cfg.getUsernameColumn(), cfg.getEmailColumn(), cfg.getFirst(), cfg.getLast());
+    }
+
+    private Pair<String, List<Object>> getSearchCondition(String search) {
+        SearchMode searchMode = databaseConfig.getSearchMode();
+
+        if (searchMode == SearchMode.FULL_TEXT) {
+            if (!SEARCH_TERM.matcher(search).find()) {
+                return Pair.of(null, Collections.<Object>emptyList());
+            }
+            return Pair.of(fullTextDocument(databaseConfig, userTableAlias + ".") + " @@ " + PREFIX_TS_QUERY,
+                    Collections.<Object>singletonList(search));
+        }
+
+        String pattern = searchMode.pattern(search);
+        String condition = String.format("%s.\"%s\" %s ? or %s.\"%s\" %s ? or %s.\"%s\" || ' ' || %s.\"%s\" %s ?",
+                userTableAlias, databaseConfig.getUsernameColumn(), searchMode.getOperator(),
+                userTableAlias, databaseConfig.getEmailColumn(), searchMode.getOperator(),
+                userTableAlias, databaseConfig.getFirst(),
+                userTableAlias, databaseConfig.getLast(), searchMode.getOperator());
+
+        return Pair.of(condition, Arrays.<Object>asList(pattern, pattern, pattern));
+    }
+
+    private Pair<String, List<Object>> getParamsCondition(Map<String, String> params) {
         Map<String, Object> statements = new LinkedHashMap<>();
         params.forEach((col, p) -> {
             UserColumn userColumn = UserColumn.fromName(col);
             Pair<String, Object> pair = getStatementForParam(userColumn, p);
             statements.put(pair.getLeft(), pair.getRight());
         });
-        String sql = baseSql;
+        String condition = statements.isEmpty() ? null : String.join(" and ", statements.keySet());
 
-        if (!statements.isEmpty()) {
-            sql = sql + " where " +
-                    String.join(" and ", statements.keySet());
-        }
-        sql += (supportsRoles ? groupBySql : "");
+        return Pair.of(condition, new ArrayList<>(statements.values()));
+    }
+
+    private int countUsers(String condition, List<Object> params) {
+        String sql = "select count(*) from \"" + databaseConfig.getUserTable().trim() + "\" " + userTableAlias +
+                (condition != null ? " where " + condition : "");
 
-        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+        try (Connection connection = getConnection();
+             PreparedStatement statement = connection.prepareStatement(sql)) {
             int i = 1;
-            for (Object p : statements.values()) {
+            for (Object p : params) {
                 statement.setObject(i++, p);
             }
-            if (maxResults != null) {
-                if (firstResult != null) {
-                    maxResults += firstResult;
+            return metrics.timeQuery(Operation.COUNT, sql, params.size(), () -> {
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    if (resultSet.next()) {
+                        return resultSet.getInt(1);
+                    }
+                    throw new RuntimeException("Error while fetching users count.");
                 }
-                statement.setMaxRows(maxResults);
-            }
-            try (ResultSet resultSet = statement.executeQuery()) {
-                return getUserModels(realm, firstResult, resultSet);
+            });
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private long getEstimatedUsersCount() {
+        String sql = "select reltuples::bigint from pg_class where oid = to_regclass(?)";
+
+        try (Connection connection = getConnection();
+             PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, "\"" + databaseConfig.getUserTable().trim() + "\"");
+            return metrics.timeQuery(Operation.COUNT, sql, 1, () -> {
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    return resultSet.next() ? resultSet.getLong(1) : -1L;
+                }
+            });
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private List<SimpleUserModel> queryUsers(Operation operation, String condition, List<Object> params, Integer firstResult, Integer maxResults) {
+        int offset = firstResult != null ? firstResult : 0;
+        boolean keyset = databaseConfig.getPagingMode() == PagingMode.KEYSET && maxResults != null;
+
+        List<String> conditions = new ArrayList<>();
+        List<Object> bindings = new ArrayList<>(params);
+        if (condition != null) {
+            conditions.add("(" + condition + ")");
+        }
+
+        String boundary = keyset && offset > 0 ? pageBoundaries.get(condition, params, offset) : null;
+        if (boundary != null) {
+            conditions.add(String.format("%s.\"%s\" > ?", userTableAlias, databaseConfig.getUsernameColumn()));
+            bindings.add(boundary);
+        }
+
+        StringBuilder sql = new StringBuilder(baseSql);
+        if (!conditions.isEmpty()) {
+            sql.append(" where ").append(String.join(" and ", conditions));
+        }
+        sql.append(" order by 1");
+        if (maxResults != null) {
+            sql.append(" limit ?");
+            bindings.add(maxResults);
+        }
+        if (offset > 0 && boundary == null) {
+            sql.append(" offset ?");
+            bindings.add(offset);
+        }
+
+        List<SimpleUserModel> users = new ArrayList<>();
+        try (Connection connection = getConnection();
+             PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+            int i = 1;
+            for (Object p : bindings) {
+                statement.setObject(i++, p);
             }
+            metrics.timeQuery(operation, sql.toString(), bindings.size(), () -> {
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        users.add(getUserModel(resultSet));
+                    }
+                }
+                return null;
+            });
+            metrics.addRowsFetched(users.size());
+            withRoles(connection, users);
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
+
+        if (keyset && !users.isEmpty()) {
+            pageBoundaries.put(condition, params, offset + users.size(), users.get(users.size() - 1).getUsername());
+        }
+        return users;
     }
 
     private Pair<String, Object> getStatementForParam(UserColumn userColumn, String value) {
         String columnName = userColumn.columnName(databaseConfig);
         if (userColumn == UserColumn.ENABLED) {
             if (databaseConfig.getEnabledType() == EnabledColumnType.BOOLEAN) {
-                return Pair.of(String.format("%s.\"%s\" = ?", userTableAlias, columnName), Boolean.valueOf(value));
+                return Pair.of(String.format("%s.\"%s\" = ?", userTableAlias, columnName), Boolean.valueOf(value.trim()));
             } else {
-                if (value.equals("true")) {
+                if (value.trim().equals("true")) {
                     return Pair.of(String.format("%s.\"%s\" = ?", userTableAlias, columnName), 1);
                 } else {
                     return Pair.of(String.format("%s.\"%s\" <> ?", userTableAlias, columnName), 1);
                 }
             }
         }
-        return Pair.of(String.format("%s.\"%s\" like ?", userTableAlias, columnName), value);
+        // Full-text search covers the combined free-text search only, single columns fall back to a contains match.
+        SearchMode searchMode = databaseConfig.getSearchMode().forColumn();
+        return Pair.of(String.format("%s.\"%s\" %s ?", userTableAlias, columnName, searchMode.getOperator()), searchMode.pattern(value));
     }
 
-    private Map<String, String> processParams(Map<String, String> params) {
-        Map<String, String> result = new HashMap<>();
-        params.forEach((key, value) -> {
-            String newValue = value.trim();
-            if (!newValue.startsWith("%")) {
-                newValue = "%" + newValue;
-            }
-            if (!newValue.endsWith("%")) {
-                newValue += "%";
-            }
-            result.put(key, newValue);
-        });
-        return result;
+    private SimpleUserModel getSingleUserModel(ResultSet resultSet) throws SQLException {
+        if (resultSet.next()) {
+            return getUserModel(resultSet);
+        }
+        return null;
     }
 
-    private List<SimpleUserModel> getUserModels(RealmModel realm, Integer firstResult, ResultSet resultSet) throws SQLException {
-        List<SimpleUserModel> users = new ArrayList<>();
-        while (resultSet.next()) {
-            if (firstResult != null && firstResult > 0) {
-                firstResult--;
-                continue;
-            }
-            String username = resultSet.getString(1);
-            String email = resultSet.getString(2);
-            String firstName = resultSet.getString(3);
-            String lastName = resultSet.getString(4);
-            String credential = resultSet.getString(6);
+    private SimpleUserModel getUserModel(ResultSet resultSet) throws SQLException {
+        String username = resultSet.getString(1);
+        String email = resultSet.getString(2);
+        String firstName = resultSet.getString(3);
+        String lastName = resultSet.getString(4);
 
-            Boolean enabled = null;
-            if (databaseConfig.getEnabledType() == EnabledColumnType.BOOLEAN) {
-                enabled = resultSet.getBoolean(5);
-            } else {
-                enabled = resultSet.getInt(5) > 0;
-            }
-            Set<RoleModel> roleMappings = new HashSet<>();
-            if (supportsRoles) {
-                String[] roles = (String[]) resultSet.getArray(7).getArray();
-                roleMappings = this.getRoleMappings(realm, roles);
-            }
+        boolean enabled = isEnabled(resultSet, 5);
+        Object id = supportsRoles ? resultSet.getObject(6) : null;
+        if (supportsRoles && idArrayType == null) {
+            // The type depends only on the column, resolve it from the first result.
+            idArrayType = getArrayElementType(resultSet.getMetaData().getColumnTypeName(6));
+        }
+
+        SimpleUserModel user = new SimpleUserModel(id, username, email, firstName, lastName, enabled);
+        if (!supportsRoles) {
+            user.setRoles(new HashSet<>());
+        }
+        return user;
+    }
+
+    private boolean isEnabled(ResultSet resultSet, int column) throws SQLException {
+        if (databaseConfig.getEnabledType() == EnabledColumnType.BOOLEAN) {
+            return resultSet.getBoolean(column);
+        }
+        return resultSet.getInt(column) > 0;
+    }
 
-            users.add(new SimpleUserModel(username, email, firstName, lastName, enabled, credential, roleMappings));
+    private List<SimpleUserModel> fetchChunk(ResultSet resultSet, int size) throws SQLException {
+        List<SimpleUserModel> chunk = new ArrayList<>(size);
+        while (chunk.size() < size && resultSet.next()) {
+            chunk.add(getUserModel(resultSet));
+        }
+        return chunk;
+    }
+
+    private List<SimpleUserModel> withRoles(Connection connection, List<SimpleUserModel> users) throws SQLException {
+        if (supportsRoles && !users.isEmpty()) {
+            Map<String, Set<String>> roles = loadRoles(connection, users);
+            users.forEach(u -> u.setRoles(roles.getOrDefault(String.valueOf(u.getId()), new HashSet<>())));
         }
         return users;
     }
 
-    private SimpleUserModel getSingleUserModel(RealmModel realm, ResultSet resultSet) throws SQLException {
-        if (resultSet.next()) {
-            String username = resultSet.getString(1);
-            String email = resultSet.getString(2);
-            String firstName = resultSet.getString(3);
-            String lastName = resultSet.getString(4);
-            Boolean enabled = null;
-            if (databaseConfig.getEnabledType() == EnabledColumnType.BOOLEAN) {
-                enabled = resultSet.getBoolean(5);
-            } else {
-                enabled = resultSet.getInt(5) > 0;
-            }
-            Set<RoleModel> roleMappings = new HashSet<>();
-            if (supportsRoles) {
-                String[] roles = (String[]) resultSet.getArray(7).getArray();
-                roleMappings = this.getRoleMappings(realm, roles);
-            }
-            String credential = resultSet.getString(6);
-            return new SimpleUserModel(username, email, firstName, lastName, enabled, credential, roleMappings);
+    private Map<String, Set<String>> loadRoles(Connection connection, List<SimpleUserModel> users) throws SQLException {
+        Map<String, Set<String>> roles = new HashMap<>();
+        try (PreparedStatement statement = connection.prepareStatement(rolesSql)) {
+            Object[] ids = users.stream().map(SimpleUserModel::getId).filter(Objects::nonNull).distinct().toArray();
+            // Bind the ids as an array of the primary key's own type so that "fk = ANY(?)" resolves for any key type.
+            statement.setArray(1, connection.createArrayOf(idArrayType != null ? idArrayType : "varchar", ids));
+            int rows = metrics.timeQuery(Operation.LOAD_ROLES, rolesSql, 1, () -> {
+                int count = 0;
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        String role = resultSet.getString(2);
+                        if (role != null) {
+                            roles.computeIfAbsent(String.valueOf(resultSet.getObject(1)), k -> new HashSet<>()).add(role);
+                        }
+                        count++;
+                    }
+                }
+                return count;
+            });
+            metrics.addRowsFetched(rows);
         }
-        return null;
+        return roles;
     }
 
-}
+    private static String getArrayElementType(String columnType) {
+        // The PostgreSQL driver reports auto-increment keys by their pseudo-type, which cannot be used for arrays.
+        switch (columnType) {
+            case "smallserial":
+                return "int2";
+            case "serial":
+                return "int4";
+            case "bigserial":
+                return "int8";
+        }
+        return columnType;
+    }
 
+    private Connection getConnection() throws SQLException {
+        return metrics.time(Operation.ACQUIRE_CONNECTION, dataSource::getConnection);
+    }
 
+}
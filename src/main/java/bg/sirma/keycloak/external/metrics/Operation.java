@@ -0,0 +1,15 @@
+package bg.sirma.keycloak.external.metrics;
+
+public enum Operation {
+    LOOKUP_BY_USERNAME,
+    LOOKUP_BY_EMAIL,
+    SEARCH,
+    LIST,
+    FETCH_ROWS,
+    COUNT,
+    LOAD_ROLES,
+    LOAD_CREDENTIAL,
+    RESOLVE_ROLES,
+    VERIFY_CREDENTIAL,
+    ACQUIRE_CONNECTION
+}
@@ -0,0 +1,190 @@
+package bg.sirma.keycloak.external.metrics;
+
+import org.jboss.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Per-component latency histograms and counters, exposed over JMX as
+ * {@code bg.sirma.keycloak.external:type=ExternalDatabaseProvider,component=<component id>}.
+ */
+public class ProviderMetrics implements ProviderMetricsMXBean {
+    private static final Logger logger = Logger.getLogger(ProviderMetrics.class);
+
+    private final Map<Operation, LatencyHistogram> histograms = new EnumMap<>(Operation.class);
+    private final Map<Operation, LongAdder> errors = new EnumMap<>(Operation.class);
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final LongAdder rowsFetched = new LongAdder();
+    private final LongAdder slowQueries = new LongAdder();
+    private final long slowQueryThresholdNanos;
+    private final ObjectName objectName;
+
+    public ProviderMetrics(String componentId, long slowQueryThresholdMillis) {
+        for (Operation operation : Operation.values()) {
+            histograms.put(operation, new LatencyHistogram());
+            errors.put(operation, new LongAdder());
+        }
+        this.slowQueryThresholdNanos = slowQueryThresholdMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(slowQueryThresholdMillis) : Long.MAX_VALUE;
+        this.objectName = createObjectName(componentId);
+    }
+
+    /**
+     * Records the time elapsed since {@code startNanos}, as returned by {@link System#nanoTime()}.
+     */
+    public void record(Operation operation, long startNanos) {
+        histograms.get(operation).record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records the time elapsed since {@code startNanos} and logs the statement if it exceeded the slow query threshold.
+     */
+    public void recordQuery(Operation operation, long startNanos, String sql, int bindCount) {
+        long elapsed = System.nanoTime() - startNanos;
+        histograms.get(operation).record(elapsed);
+        if (elapsed >= slowQueryThresholdNanos) {
+            slowQueries.increment();
+            logger.warnf("Slow %s query took %d ms with %d bind parameters: %s",
+                    operation, TimeUnit.NANOSECONDS.toMillis(elapsed), bindCount, sql);
+        }
+    }
+
+    /**
+     * Runs {@code action} and records its latency whether it completes or throws. Failures are also counted.
+     */
+    public <T, E extends Exception> T time(Operation operation, TimedAction<T, E> action) throws E {
+        return timeQuery(operation, null, 0, action);
+    }
+
+    /**
+     * Like {@link #time}, and logs the statement if it exceeded the slow query threshold.
+     */
+    public <T, E extends Exception> T timeQuery(Operation operation, String sql, int bindCount, TimedAction<T, E> action) throws E {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            T result = action.run();
+            failed = false;
+            return result;
+        } finally {
+            if (failed) {
+                errors.get(operation).increment();
+            }
+            if (sql != null) {
+                recordQuery(operation, start, sql, bindCount);
+            } else {
+                record(operation, start);
+            }
+        }
+    }
+
+    public void addRowsFetched(int rows) {
+        rowsFetched.add(rows);
+    }
+
+    public void registerGauge(String name, LongSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+
+    public void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            logger.warn("Could not register metrics MBean " + objectName, e);
+        }
+    }
+
+    public void unregister() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            logger.warn("Could not unregister metrics MBean " + objectName, e);
+        }
+    }
+
+    @Override
+    public Map<String, Long> getCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        histograms.forEach((operation, histogram) -> counts.put(operation.name(), histogram.getCount()));
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getErrors() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        errors.forEach((operation, count) -> counts.put(operation.name(), count.sum()));
+        return counts;
+    }
+
+    @Override
+    public Map<String, Double> getMeanMillis() {
+        return collect(LatencyHistogram::getMeanMillis);
+    }
+
+    @Override
+    public Map<String, Double> getP50Millis() {
+        return collect(histogram -> histogram.getQuantileMillis(0.5));
+    }
+
+    @Override
+    public Map<String, Double> getP99Millis() {
+        return collect(histogram -> histogram.getQuantileMillis(0.99));
+    }
+
+    @Override
+    public Map<String, Double> getMaxMillis() {
+        return collect(LatencyHistogram::getMaxMillis);
+    }
+
+    @Override
+    public long getRowsFetched() {
+        return rowsFetched.sum();
+    }
+
+    @Override
+    public long getSlowQueries() {
+        return slowQueries.sum();
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        return values;
+    }
+
+    private Map<String, Double> collect(ToDoubleFunction<LatencyHistogram> value) {
+        Map<String, Double> values = new LinkedHashMap<>();
+        histograms.forEach((operation, histogram) -> values.put(operation.name(), value.applyAsDouble(histogram)));
+        return values;
+    }
+
+    public interface TimedAction<T, E extends Exception> {
+        T run() throws E;
+    }
+
+    private static ObjectName createObjectName(String componentId) {
+        try {
+            return new ObjectName("bg.sirma.keycloak.external:type=ExternalDatabaseProvider,component=" + ObjectName.quote(componentId));
+        } catch (JMException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package bg.sirma.keycloak.external.metrics;
+
+import java.util.Map;
+
+public interface ProviderMetricsMXBean {
+
+    Map<String, Long> getCounts();
+
+    Map<String, Long> getErrors();
+
+    Map<String, Double> getMeanMillis();
+
+    Map<String, Double> getP50Millis();
+
+    Map<String, Double> getP99Millis();
+
+    Map<String, Double> getMaxMillis();
+
+    long getRowsFetched();
+
+    long getSlowQueries();
+
+    Map<String, Long> getGauges();
+}
@@ -0,0 +1,260 @@
+package bg.sirma.keycloak.external.sync;
+
+import bg.sirma.keycloak.external.SimpleUserModel;
+import bg.sirma.keycloak.external.cache.RoleCache;
+import bg.sirma.keycloak.external.dao.UserDAO;
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Streams users from the external database into Keycloak's local storage. Users are read through a
+ * server-side cursor and imported in batches, each batch in its own transaction, with a bounded number
+ * of batches in flight. Imported users keep a federation link to the component, so password checks
+ * still go to the provider.
+ * <p>
+ * Realm roles that come from the external roles table are kept in line with it: they are granted and
+ * revoked as the external user gains and loses them. Roles granted only in Keycloak are left alone.
+ */
+public class UserSynchronizer {
+    /**
+     * User attribute holding the external roles granted by the last synchronization, so that a role can still
+     * be revoked after it disappears from the external roles table entirely.
+     */
+    public static final String EXTERNAL_ROLES_ATTRIBUTE = "external-roles";
+
+    private static final Logger logger = Logger.getLogger(UserSynchronizer.class);
+
+    private final UserDAO userDAO;
+    private final RoleCache roleCache;
+    private final int batchSize;
+    private final int parallelism;
+
+    public UserSynchronizer(UserDAO userDAO, RoleCache roleCache, int batchSize, int parallelism) {
+        this.userDAO = userDAO;
+        this.roleCache = roleCache;
+        this.batchSize = Math.max(batchSize, 1);
+        this.parallelism = Math.max(parallelism, 1);
+    }
+
+    /**
+     * @param since only users changed after this time are imported, or all users if {@code null}
+     */
+    public SynchronizationResult synchronize(KeycloakSessionFactory sessionFactory, String realmId,
+                                             UserStorageProviderModel model, Date since) {
+        SynchronizationResult result = new SynchronizationResult();
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        Semaphore inFlight = new Semaphore(parallelism * 2);
+        List<Future<?>> batches = new ArrayList<>();
+        List<SimpleUserModel> batch = new ArrayList<>(batchSize);
+        Set<String> managedRoles = userDAO.getRoleNames();
+
+        try {
+            Consumer<SimpleUserModel> consumer = user -> {
+                batch.add(user);
+                if (batch.size() >= batchSize) {
+                    batches.add(submit(executor, inFlight, sessionFactory, realmId, model, new ArrayList<>(batch), managedRoles, result));
+                    batch.clear();
+                }
+            };
+            if (since == null) {
+                userDAO.streamUsers(consumer);
+            } else {
+                userDAO.streamUsersChangedSince(since, consumer);
+            }
+            if (!batch.isEmpty()) {
+                batches.add(submit(executor, inFlight, sessionFactory, realmId, model, new ArrayList<>(batch), managedRoles, result));
+            }
+
+            for (Future<?> future : batches) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        logger.infof("Synchronized users of component %s: %s", model.getName(), result.getStatus());
+        return result;
+    }
+
+    private Future<?> submit(ExecutorService executor, Semaphore inFlight, KeycloakSessionFactory sessionFactory,
+                             String realmId, UserStorageProviderModel model, List<SimpleUserModel> users,
+                             Set<String> managedRoles, SynchronizationResult result) {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+
+        return executor.submit(() -> {
+            try {
+                SynchronizationResult batchResult = importBatch(sessionFactory, realmId, model, users, managedRoles);
+                synchronized (result) {
+                    result.add(batchResult);
+                }
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    /**
+     * Imports the batch in one transaction. If that fails, for example on a duplicate email, the batch is
+     * imported again one user per transaction so that only the offending users are counted as failed.
+     */
+    private SynchronizationResult importBatch(KeycloakSessionFactory sessionFactory, String realmId,
+                                              UserStorageProviderModel model, List<SimpleUserModel> users,
+                                              Set<String> managedRoles) {
+        if (users.size() == 1) {
+            return importUser(sessionFactory, realmId, model, users.get(0), managedRoles);
+        }
+        try {
+            return importInTransaction(sessionFactory, realmId, model, users, managedRoles);
+        } catch (RuntimeException e) {
+            logger.debugf(e, "Could not import a batch of %d users for component %s, importing them one at a time",
+                    users.size(), model.getName());
+        }
+
+        SynchronizationResult batchResult = new SynchronizationResult();
+        for (SimpleUserModel user : users) {
+            batchResult.add(importUser(sessionFactory, realmId, model, user, managedRoles));
+        }
+        return batchResult;
+    }
+
+    private SynchronizationResult importUser(KeycloakSessionFactory sessionFactory, String realmId,
+                                             UserStorageProviderModel model, SimpleUserModel user, Set<String> managedRoles) {
+        try {
+            return importInTransaction(sessionFactory, realmId, model, Collections.singletonList(user), managedRoles);
+        } catch (RuntimeException e) {
+            logger.warnf(e, "Could not import user %s for component %s", user.getUsername(), model.getName());
+            SynchronizationResult result = new SynchronizationResult();
+            result.increaseFailed();
+            return result;
+        }
+    }
+
+    private SynchronizationResult importInTransaction(KeycloakSessionFactory sessionFactory, String realmId,
+                                                      UserStorageProviderModel model, List<SimpleUserModel> users,
+                                                      Set<String> managedRoles) {
+        // Counted only once the transaction commits, a rolled back batch leaves no partial counts behind.
+        SynchronizationResult result = new SynchronizationResult();
+        KeycloakModelUtils.runJobInTransaction(sessionFactory,
+                session -> importUsers(session, realmId, model, users, managedRoles, result));
+        return result;
+    }
+
+    private void importUsers(KeycloakSession session, String realmId, UserStorageProviderModel model, List<SimpleUserModel> users,
+                             Set<String> managedRoles, SynchronizationResult result) {
+        RealmModel realm = session.realms().getRealm(realmId);
+        UserProvider localStorage = session.userLocalStorage();
+
+        Map<String, RoleModel> roles = roleCache.resolve(session, realm, getRoleNames(users));
+
+        for (SimpleUserModel external : users) {
+            UserModel user = localStorage.getUserByUsername(external.getUsername(), realm);
+            boolean created = user == null;
+            if (created) {
+                user = localStorage.addUser(realm, external.getUsername());
+                user.setFederationLink(model.getId());
+            } else if (!model.getId().equals(user.getFederationLink())) {
+                logger.warnf("Skipping user %s, a user with that username already exists and is not linked to component %s",
+                        external.getUsername(), model.getName());
+                result.increaseFailed();
+                continue;
+            }
+
+            boolean changed = updateAttributes(user, external);
+            if (external.getRoles() != null) {
+                changed |= updateRoles(user, external.getRoles(), roles, managedRoles);
+            }
+
+            if (created) {
+                result.increaseAdded();
+            } else if (changed) {
+                result.increaseUpdated();
+            }
+        }
+    }
+
+    private static boolean updateAttributes(UserModel user, SimpleUserModel external) {
+        boolean changed = false;
+        // Keycloak stores emails in lower case.
+        String email = external.getEmail() != null ? external.getEmail().toLowerCase() : null;
+        if (!Objects.equals(user.getEmail(), email)) {
+            user.setEmail(email);
+            changed = true;
+        }
+        if (!Objects.equals(user.getFirstName(), external.getFirstName())) {
+            user.setFirstName(external.getFirstName());
+            changed = true;
+        }
+        if (!Objects.equals(user.getLastName(), external.getLastName())) {
+            user.setLastName(external.getLastName());
+            changed = true;
+        }
+        if (user.isEnabled() != external.isEnabled()) {
+            user.setEnabled(external.isEnabled());
+            changed = true;
+        }
+        return changed;
+    }
+
+    private static boolean updateRoles(UserModel user, Set<String> externalRoles, Map<String, RoleModel> roles,
+                                       Set<String> managedRoles) {
+        boolean changed = false;
+        List<String> previousRoles = user.getAttribute(EXTERNAL_ROLES_ATTRIBUTE);
+        if (previousRoles == null) {
+            previousRoles = Collections.emptyList();
+        }
+
+        for (RoleModel role : new ArrayList<>(user.getRealmRoleMappings())) {
+            String roleName = role.getName();
+            boolean external = managedRoles.contains(roleName) || previousRoles.contains(roleName);
+            if (external && !externalRoles.contains(roleName)) {
+                user.deleteRoleMapping(role);
+                changed = true;
+            }
+        }
+
+        for (String roleName : externalRoles) {
+            RoleModel role = roles.get(roleName);
+            if (role != null && !user.hasRole(role)) {
+                user.grantRole(role);
+                changed = true;
+            }
+        }
+
+        if (!new HashSet<>(previousRoles).equals(externalRoles)) {
+            user.setAttribute(EXTERNAL_ROLES_ATTRIBUTE, new ArrayList<>(externalRoles));
+        }
+        return changed;
+    }
+
+    private static Set<String> getRoleNames(List<SimpleUserModel> users) {
+        return users.stream()
+                .map(SimpleUserModel::getRoles)
+                .filter(Objects::nonNull)
+                .flatMap(Set::stream)
+                .collect(Collectors.toSet());
+    }
+}
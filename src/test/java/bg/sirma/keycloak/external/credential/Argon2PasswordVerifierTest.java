@@ -0,0 +1,44 @@
+package bg.sirma.keycloak.external.credential;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class Argon2PasswordVerifierTest {
+
+    // Reference implementation: echo -n "password" | argon2 somesalt -id -t 2 -m 16 -p 4 -l 32
+    private static final String HASH = "$argon2id$v=19$m=65536,t=2,p=4$c29tZXNhbHQ$GpZ3sK/oH9p7VIiV56G/64Zo/8GaUw434IimaPqxwCo";
+
+    private final PasswordVerifier verifier = new Argon2PasswordVerifier();
+
+    @Test
+    public void acceptsCorrectPassword() {
+        assertTrue(verifier.verify("password", HASH));
+    }
+
+    @Test
+    public void rejectsWrongPassword() {
+        assertFalse(verifier.verify("Password", HASH));
+    }
+
+    @Test
+    public void rejectsParameterWithoutValue() {
+        assertFalse(verifier.verify("password", "$argon2id$v=19$m65536,t=2,p=4$c29tZXNhbHQ$GpZ3sK/oH9p7VIiV56G/64Zo/8GaUw434IimaPqxwCo"));
+    }
+
+    @Test
+    public void rejectsMalformedVersion() {
+        assertFalse(verifier.verify("password", "$argon2id$v$m=65536,t=2,p=4$c29tZXNhbHQ$GpZ3sK/oH9p7VIiV56G/64Zo/8GaUw434IimaPqxwCo"));
+    }
+
+    @Test
+    public void rejectsUnknownType() {
+        assertFalse(verifier.verify("password", "$argon2x$v=19$m=65536,t=2,p=4$c29tZXNhbHQ$GpZ3sK/oH9p7VIiV56G/64Zo/8GaUw434IimaPqxwCo"));
+    }
+
+    @Test
+    public void rejectsOtherFormats() {
+        assertFalse(verifier.verify("password", "pbkdf2_sha256$1000$seasalt$YIWkt6M1JFXrHg5s0jZjBSc7C2Cz6QvchSJ0h8Y+i7c="));
+    }
+}
@@ -0,0 +1,40 @@
+package bg.sirma.keycloak.external.credential;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BCryptPasswordVerifierTest {
+
+    // Openwall crypt_blowfish test vector for "U*U".
+    private static final String HASH = "$2a$05$CCCCCCCCCCCCCCCCCCCCC.E5YPO9kmyuRGyh0XouQYb4YMJKvyOeW";
+
+    private final PasswordVerifier verifier = new BCryptPasswordVerifier();
+
+    @Test
+    public void acceptsCorrectPassword() {
+        assertTrue(verifier.verify("U*U", HASH));
+    }
+
+    @Test
+    public void acceptsOtherVersionPrefixes() {
+        assertTrue(verifier.verify("U*U", "$2b$" + HASH.substring(4)));
+        assertTrue(verifier.verify("U*U", "$2y$" + HASH.substring(4)));
+    }
+
+    @Test
+    public void rejectsWrongPassword() {
+        assertFalse(verifier.verify("U*V", HASH));
+    }
+
+    @Test
+    public void rejectsTruncatedHash() {
+        assertFalse(verifier.verify("U*U", HASH.substring(0, 40)));
+    }
+
+    @Test
+    public void rejectsMalformedCost() {
+        assertFalse(verifier.verify("U*U", "$2a$xx$CCCCCCCCCCCCCCCCCCCCC.E5YPO9kmyuRGyh0XouQYb4YMJKvyOeW"));
+    }
+}
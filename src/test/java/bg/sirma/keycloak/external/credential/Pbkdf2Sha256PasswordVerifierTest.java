@@ -0,0 +1,44 @@
+package bg.sirma.keycloak.external.credential;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class Pbkdf2Sha256PasswordVerifierTest {
+
+    // Django format: base64(PBKDF2-HMAC-SHA256("password", "seasalt", 1000 iterations))
+    private static final String HASH = "pbkdf2_sha256$1000$seasalt$YIWkt6M1JFXrHg5s0jZjBSc7C2Cz6QvchSJ0h8Y+i7c=";
+
+    private final PasswordVerifier verifier = new Pbkdf2Sha256PasswordVerifier();
+
+    @Test
+    public void acceptsCorrectPassword() {
+        assertTrue(verifier.verify("password", HASH));
+    }
+
+    @Test
+    public void rejectsWrongPassword() {
+        assertFalse(verifier.verify("password1", HASH));
+    }
+
+    @Test
+    public void rejectsMalformedIterations() {
+        assertFalse(verifier.verify("password", "pbkdf2_sha256$many$seasalt$YIWkt6M1JFXrHg5s0jZjBSc7C2Cz6QvchSJ0h8Y+i7c="));
+    }
+
+    @Test
+    public void rejectsZeroIterations() {
+        assertFalse(verifier.verify("password", "pbkdf2_sha256$0$seasalt$YIWkt6M1JFXrHg5s0jZjBSc7C2Cz6QvchSJ0h8Y+i7c="));
+    }
+
+    @Test
+    public void rejectsEmptyHash() {
+        assertFalse(verifier.verify("password", "pbkdf2_sha256$1000$seasalt$"));
+    }
+
+    @Test
+    public void rejectsOtherAlgorithms() {
+        assertFalse(verifier.verify("password", "pbkdf2_sha1$1000$seasalt$YIWkt6M1JFXrHg5s0jZjBSc7C2Cz6QvchSJ0h8Y+i7c="));
+    }
+}